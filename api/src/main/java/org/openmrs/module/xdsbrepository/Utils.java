@@ -1,9 +1,17 @@
 package org.openmrs.module.xdsbrepository;
 
-import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
-
-import static org.openmrs.module.xdsbrepository.XDSbServiceConstants.XDS_REPOSITORY_LOCATION_LOOKUP_ATTRIBUTE_TYPE;
+import org.openmrs.module.xdsbrepository.audit.AuditDispatcher;
+import org.openmrs.module.xdsbrepository.cache.ContentHandoffCache;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.module.xdsbrepository.queue.DiscreteDataWorkerPool;
+import org.openmrs.module.xdsbrepository.queue.QueueBackpressure;
+import org.openmrs.module.xdsbrepository.queue.QueueSignal;
+import org.openmrs.module.xdsbrepository.ratelimit.SourceRateLimiter;
+import org.openmrs.module.xdsbrepository.session.ServiceSessionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 public class Utils {
 
@@ -11,22 +19,111 @@ public class Utils {
      * Start an OpenMRS Session
      */
     public static void startSession() {
-        AdministrationService as = Context.getAdministrationService();
         Context.openSession();
 
         if (!Context.isAuthenticated()) {
-            String username = as.getGlobalProperty(XDSbServiceConstants.WS_USERNAME_GP);
-            String password = as.getGlobalProperty(XDSbServiceConstants.WS_PASSWORD_GP);
-            Context.authenticate(username, password);
+            authenticate(getConfiguration());
         }
     }
 
-    public static String getLocationLookupAttributeTypeUuid() {
-        return getProperty(XDS_REPOSITORY_LOCATION_LOOKUP_ATTRIBUTE_TYPE, "6242bf19-207e-4076-9d28-9290525b8ed9");
+    /**
+     * Start an OpenMRS Session, authenticating with the credentials from the given configuration
+     */
+    public static void startSession(XDSbRepositoryConfiguration configuration) {
+        Context.openSession();
+
+        if (!Context.isAuthenticated()) {
+            authenticate(configuration);
+        }
+    }
+
+    private static void authenticate(XDSbRepositoryConfiguration configuration) {
+        getServiceSessionManager().attach(configuration);
+    }
+
+    /**
+     * @return the module's service session manager bean
+     */
+    public static ServiceSessionManager getServiceSessionManager() {
+        return Context.getRegisteredComponent("xdsbrepository.serviceSessionManager", ServiceSessionManager.class);
+    }
+
+    /**
+     * @return the module's audit dispatcher bean
+     */
+    public static AuditDispatcher getAuditDispatcher() {
+        return Context.getRegisteredComponent("xdsbrepository.auditDispatcher", AuditDispatcher.class);
+    }
+
+    /**
+     * @return the module's queue signal bean
+     */
+    public static QueueSignal getQueueSignal() {
+        return Context.getRegisteredComponent("xdsbrepository.queueSignal", QueueSignal.class);
+    }
+
+    /**
+     * @return the module's discrete data worker pool bean
+     */
+    public static DiscreteDataWorkerPool getDiscreteDataWorkerPool() {
+        return Context.getRegisteredComponent("xdsbrepository.discreteDataWorkerPool", DiscreteDataWorkerPool.class);
     }
 
-    private static String getProperty(String name, String defaultVal) {
-        return Context.getAdministrationService().getGlobalProperty(name, defaultVal);
+    /**
+     * @return the module's queue backpressure bean
+     */
+    public static QueueBackpressure getQueueBackpressure() {
+        return Context.getRegisteredComponent("xdsbrepository.queueBackpressure", QueueBackpressure.class);
+    }
+
+    /**
+     * @return the module's source rate limiter bean
+     */
+    public static SourceRateLimiter getSourceRateLimiter() {
+        return Context.getRegisteredComponent("xdsbrepository.sourceRateLimiter", SourceRateLimiter.class);
+    }
+
+    /**
+     * @return the module's content handoff cache bean
+     */
+    public static ContentHandoffCache getContentHandoffCache() {
+        return Context.getRegisteredComponent("xdsbrepository.contentHandoffCache", ContentHandoffCache.class);
+    }
+
+    /**
+     * @return the module's configuration manager bean
+     */
+    public static ConfigurationManager getConfigurationManager() {
+        return Context.getRegisteredComponent("xdsbrepository.configurationManager", ConfigurationManager.class);
+    }
+
+    /**
+     * @return the current snapshot of the module's configuration
+     */
+    public static XDSbRepositoryConfiguration getConfiguration() {
+        return getConfigurationManager().getConfiguration();
+    }
+
+    /**
+     * Runs an action once the current transaction has committed, or straight away when there
+     * is no transaction in progress. Use this for in-memory state that must not reflect changes
+     * that may still be rolled back.
+     */
+    public static void runAfterCommit(final Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    public static String getLocationLookupAttributeTypeUuid() {
+        return getConfiguration().getLocationLookupAttributeTypeUuid();
     }
 
 }
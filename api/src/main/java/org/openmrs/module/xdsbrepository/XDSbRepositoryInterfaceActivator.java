@@ -18,28 +18,22 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dcm4che3.audit.AuditMessages.EventTypeCode;
 import org.dcm4chee.xds2.common.audit.XDSAudit;
-import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.ModuleActivator;
 import org.openmrs.module.shr.atna.api.AtnaAuditService;
 import org.openmrs.module.shr.atna.configuration.AtnaConfiguration;
-import org.openmrs.module.xdsbrepository.tasks.DiscreteDataProcessorTask;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
 import org.openmrs.scheduler.SchedulerException;
 import org.openmrs.scheduler.SchedulerService;
 import org.openmrs.scheduler.TaskDefinition;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
 public class XDSbRepositoryInterfaceActivator implements ModuleActivator {
 
-	private ScheduledExecutorService scheduledExecutorService;
-	
 	protected Log log = LogFactory.getLog(getClass());
 		
 	/**
@@ -72,22 +66,15 @@ public class XDSbRepositoryInterfaceActivator implements ModuleActivator {
 				true);
 		log.info("XDSb Repository Interface Module started");
 
-		AdministrationService as = Context.getAdministrationService();
-		boolean async = Boolean.parseBoolean(as.getGlobalProperty(
-				XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC));
-		int pollPeriod = Integer.parseInt(Context.getAdministrationService().getGlobalProperty(
-				XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_POLL_PERIOD, "100"));
+		ConfigurationManager configurationManager = Utils.getConfigurationManager();
+		XDSbRepositoryConfiguration configuration = configurationManager.reload();
+		Utils.getAuditDispatcher().start(configuration);
 
-		if (async) {
-			Integer maxTasks = Integer.parseInt(as.getGlobalProperty(
-					XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS));
-			ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(maxTasks);
-			// for each thread schedule a recurring task
-			for (int i = 0; i < maxTasks; i++) {
-				scheduledExecutorService.scheduleWithFixedDelay(new DiscreteDataProcessorTask(), pollPeriod, pollPeriod,
-						TimeUnit.MILLISECONDS);
-			}
-		}
+		// documents spilled before a restart may be out of date, the processors read them from the store
+		Utils.getContentHandoffCache().clear();
+		// the processors are only started if async processing is enabled, the pool starts and stops them
+		// when the global property changes
+		Utils.getDiscreteDataWorkerPool().start(configuration);
 	}
 	
 	/**
@@ -96,22 +83,19 @@ public class XDSbRepositoryInterfaceActivator implements ModuleActivator {
 	public void willStop() {
 		log.info("Stopping XDSb Repository Interface Module");
 
-		if (scheduledExecutorService != null) {
-			try {
-				if (!scheduledExecutorService.awaitTermination(60, TimeUnit.SECONDS)) {
-					// timeout waiting for tasks to complete
-					log.error("Timeout waiting for discrete data processor tasks to terminate before module shutdown.");
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		// send any audit messages that are still queued
+		Utils.getAuditDispatcher().shutdown();
+
+		// finish the queue items being processed and hand the rest back to the queue
+		Utils.getDiscreteDataWorkerPool().drain();
+		Utils.getContentHandoffCache().clear();
 	}
 	
 	/**
 	 * @see ModuleActivator#stopped()
 	 */
 	public void stopped() {
+		Utils.getConfigurationManager().shutdown();
 
 		XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
 		XDSAudit.logApplicationActivity(AtnaConfiguration.getInstance().getDeviceName(), EventTypeCode.ApplicationStop,
@@ -4,12 +4,19 @@ import org.dcm4chee.xds2.common.exception.XDSException;
 import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
 import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
 import org.dcm4chee.xds2.infoset.rim.SubmitObjectsRequest;
+import org.openmrs.EncounterRole;
+import org.openmrs.Provider;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
+import org.openmrs.module.xdsbrepository.model.QueueDailyStat;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.queue.QueueRoute;
 
 import java.net.MalformedURLException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 public interface XDSbService extends OpenmrsService {
@@ -52,6 +59,9 @@ public interface XDSbService extends OpenmrsService {
 	RegistryResponseType provideAndRegisterDocumentSetB(ProvideAndRegisterDocumentSetRequestType request) throws XDSException, ContentHandlerException;
 	
 	/**
+	 * Queues a document for discrete data processing. A document has at most one queued or processing
+	 * item: if it already has one that item is updated with the given details instead, and if it is
+	 * being processed it is queued again once the current attempt completes.
 	 * @param qi - the QueueItem to add to  the queue.
 	 * @return The QueueItem that was saved to the queue.
 	 */
@@ -63,6 +73,82 @@ public interface XDSbService extends OpenmrsService {
 	 */
 	QueueItem dequeueNextDiscreteDataForProcessing();
 
+	/**
+	 * Claims up to maxItems of the oldest queue items for processing, their status is set to processing.
+	 * @param maxItems - the maximum number of queue items to claim
+	 * @return The QueueItems to be processed, oldest first, or an empty list if the queue is empty.
+	 */
+	List<QueueItem> dequeueDiscreteDataForProcessing(int maxItems);
+
+	/**
+	 * Claims up to maxItems of the oldest queue items on the given route for processing, their status is set
+	 * to processing.
+	 * @param maxItems - the maximum number of queue items to claim
+	 * @param route - selects the items by their type and format codes, null claims any item
+	 * @return The QueueItems to be processed, oldest first, or an empty list if there are none on the route.
+	 */
+	List<QueueItem> dequeueDiscreteDataForProcessing(int maxItems, QueueRoute route);
+
+	/**
+	 * Claims up to maxItems of the oldest queue items on the given route for the given owner, their status
+	 * is set to processing.
+	 * @param maxItems - the maximum number of queue items to claim
+	 * @param route - selects the items by their type and format codes, null claims any item
+	 * @param owner - identifies the processor that claims the items, it must be unique to its run
+	 * @return The QueueItems to be processed, oldest first, or an empty list if there are none on the route.
+	 */
+	List<QueueItem> dequeueDiscreteDataForProcessing(int maxItems, QueueRoute route, String owner);
+
+	/**
+	 * Returns queue items whose processing lease has expired, because the worker processing them
+	 * crashed or was stopped, to the queue so that they are processed again.
+	 * @return the number of queue items that were requeued
+	 */
+	int requeueExpiredQueueItems();
+
+	/**
+	 * Renews the processing lease of a queue item claimed by the current thread, so that the lease
+	 * runs from when processing of the item starts rather than from when its batch was claimed.
+	 * @param id - the id of the claimed QueueItem
+	 * @return true if the lease was renewed, false if the item is no longer claimed by the current thread
+	 */
+	boolean extendQueueItemLease(Integer id);
+
+	/**
+	 * Renews the processing lease of a queue item claimed by the given owner.
+	 * @param id - the id of the claimed QueueItem
+	 * @param owner - the owner the item was claimed for
+	 * @return true if the lease was renewed, false if the item is no longer claimed by the owner
+	 */
+	boolean extendQueueItemLease(Integer id, String owner);
+
+	/**
+	 * Records a failed attempt to process a queue item. The item is queued again after a backoff
+	 * period unless it has used up its attempts, then it is marked as dead. Only an item claimed by
+	 * the current thread is updated.
+	 * @param qi - the QueueItem that failed.
+	 * @param errorMessage - the reason the attempt failed
+	 * @return the updated QueueItem or null if the item is no longer claimed by the current thread
+	 */
+	QueueItem failQueueItem(QueueItem qi, String errorMessage);
+
+	/**
+	 * Records a failed attempt to process a queue item claimed by the given owner.
+	 * @param qi - the QueueItem that failed.
+	 * @param errorMessage - the reason the attempt failed
+	 * @param owner - the owner the item was claimed for
+	 * @return the updated QueueItem or null if the item is no longer claimed by the owner
+	 */
+	QueueItem failQueueItem(QueueItem qi, String errorMessage, String owner);
+
+	/**
+	 * Queues all dead queue items again, with a fresh set of attempts, as if they had just been
+	 * added. Only the latest dead item of a document is queued and only if the document has not been
+	 * queued again since.
+	 * @return the number of queue items that were requeued
+	 */
+	int requeueDeadQueueItems();
+
 	/**
 	 * Completes this queue item (mark it as done). You must also indicate if the item was processed succeefully or not.
 	 * @param qi - the QueueItem to complete.
@@ -71,4 +157,99 @@ public interface XDSbService extends OpenmrsService {
 	 */
 	QueueItem completeQueueItem(QueueItem qi, boolean successful);
 
+	/**
+	 * Marks the given queue items as successfully processed in one statement. Only items claimed by
+	 * the current thread are updated.
+	 * @param ids - the ids of the QueueItems that were processed
+	 * @return the number of queue items that were updated
+	 */
+	int completeQueueItems(List<Integer> ids);
+
+	/**
+	 * Marks the given queue items claimed by the given owner as successfully processed in one statement.
+	 * @param ids - the ids of the QueueItems that were processed
+	 * @param owner - the owner the items were claimed for
+	 * @return the number of queue items that were updated
+	 */
+	int completeQueueItems(List<Integer> ids, String owner);
+
+	/**
+	 * Returns claimed queue items that were not processed to the queue, without using up an attempt.
+	 * Only items claimed by the current thread are released.
+	 * @param ids - the ids of the QueueItems to release
+	 * @return the number of queue items that were released
+	 */
+	int releaseQueueItems(List<Integer> ids);
+
+	/**
+	 * Returns queue items claimed by the given owner that were not processed to the queue, without using
+	 * up an attempt.
+	 * @param ids - the ids of the QueueItems to release
+	 * @param owner - the owner the items were claimed for
+	 * @return the number of queue items that were released
+	 */
+	int releaseQueueItems(List<Integer> ids, String owner);
+
+	/**
+	 * @return the number of queue items that are due to be processed
+	 */
+	long getQueueDepth();
+
+	/**
+	 * @return when the live queue item that has been due the longest became due, counting only the
+	 * items that could be claimed now, or null if there are none
+	 */
+	Date getOldestDueQueueItemDate();
+
+	/**
+	 * Deletes the responses kept to answer retried submissions
+	 *
+	 * @param createdBefore - the responses to submissions before this are deleted
+	 * @return the number of responses deleted
+	 */
+	int purgeSubmissionReplays(Date createdBefore);
+
+	/**
+	 * Deletes the rows that submissions lock before creating a patient, provider or other row for a
+	 * natural key. A row is only needed while submissions for its key are in flight.
+	 *
+	 * @param lockedBefore - the rows last locked before this are deleted
+	 * @return the number of rows deleted
+	 */
+	int purgeKeyLocks(Date lockedBefore);
+
+	/**
+	 * @param id - the id of the QueueItem
+	 * @return the QueueItem or null if there is no such item
+	 */
+	QueueItem getQueueItem(Integer id);
+
+	/**
+	 * @param ids - the ids of the providers
+	 * @return the providers that exist, loaded with one query
+	 */
+	List<Provider> getProvidersByIds(Collection<Integer> ids);
+
+	/**
+	 * @param ids - the ids of the encounter roles
+	 * @return the encounter roles that exist, loaded with one query
+	 */
+	List<EncounterRole> getEncounterRolesByIds(Collection<Integer> ids);
+
+	/**
+	 * Deletes up to maxItems of the queue items that finished (successfully or not) before the
+	 * given date, after adding them to the daily queue statistics. Dead items are kept.
+	 * @param finishedBefore - only queue items that finished before this are purged
+	 * @param maxItems - the maximum number of queue items to purge
+	 * @return the number of queue items that were purged
+	 */
+	int purgeFinishedQueueItems(Date finishedBefore, int maxItems);
+
+	/**
+	 * @param fromDate - the first day to return statistics for
+	 * @param toDate - the last day to return statistics for
+	 * @return the daily counts of purged queue items between the given days
+	 */
+	List<QueueDailyStat> getQueueDailyStats(Date fromDate, Date toDate);
+
 }
@@ -6,10 +6,12 @@ package org.openmrs.module.xdsbrepository;
  */
 public class XDSbServiceConstants {
 	
+	public static final String GP_PREFIX = "xds-b-repository.";
 	public static final String XDS_REGISTRY_URL_GP = "xds-b-repository.xdsregistry.url";
 	public static final String REPOSITORY_UNIQUE_ID_GP = "xds-b-repository.xdsrepository.uniqueId";
 	public static final String WS_USERNAME_GP = "xds-b-repository.ws.username";
 	public static final String WS_PASSWORD_GP = "xds-b-repository.ws.password";
+	public static final String WS_SESSION_TIMEOUT_GP = "xds-b-repository.ws.sessionTimeout";
 	public static final String XDS_REPOSITORY_AUTOCREATE_PATIENTS ="xds-b-repository.autoCreatePatients";
 	public static final String XDS_REPOSITORY_AUTOCREATE_PROVIDERS = "xds-b-repository.autoCreateProviders";
 	public static final String XDS_REPOSITORY_AUTOCREATE_LOCATIONS = "xds-b-repository.autoCreateLocations";
@@ -17,12 +19,52 @@ public class XDSbServiceConstants {
 	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC = "xds-b-repository.discreteHandler.async";
 	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_POLL_PERIOD = "xds-b-repository.discreteHandler.asyncPollingPeriod";
 	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS = "xds-b-repository.discreteHandler.asyncMaxTasks";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_CLAIM_BATCH_SIZE = "xds-b-repository.discreteHandler.claimBatchSize";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_LEASE_SECONDS = "xds-b-repository.discreteHandler.leaseSeconds";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_REAPER_INTERVAL = "xds-b-repository.discreteHandler.reaperInterval";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_MAX_ATTEMPTS = "xds-b-repository.discreteHandler.maxAttempts";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_RETRY_BASE_DELAY = "xds-b-repository.discreteHandler.retryBaseDelay";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_RETRY_MAX_DELAY = "xds-b-repository.discreteHandler.retryMaxDelay";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_IDLE_POLL_PERIOD = "xds-b-repository.discreteHandler.idlePollPeriod";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_LIVE_WEIGHT = "xds-b-repository.discreteHandler.liveWeight";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_BULK_SOURCE_IDS = "xds-b-repository.discreteHandler.bulkSourceIds";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_POOLS = "xds-b-repository.discreteHandler.pools";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ADAPTIVE_CONCURRENCY = "xds-b-repository.discreteHandler.adaptiveConcurrency";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_MIN_TASKS = "xds-b-repository.discreteHandler.minTasks";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_TARGET_LATENCY = "xds-b-repository.discreteHandler.targetLatency";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ADJUST_INTERVAL = "xds-b-repository.discreteHandler.adjustInterval";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_RETENTION_DAYS = "xds-b-repository.discreteHandler.retentionDays";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_PURGE_INTERVAL = "xds-b-repository.discreteHandler.purgeInterval";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_PURGE_BATCH_SIZE = "xds-b-repository.discreteHandler.purgeBatchSize";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_PURGE_PAUSE = "xds-b-repository.discreteHandler.purgePause";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_CACHE_SIZE = "xds-b-repository.discreteHandler.handoffCacheSize";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_SPILL_SIZE = "xds-b-repository.discreteHandler.handoffSpillSize";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_TTL = "xds-b-repository.discreteHandler.handoffTtl";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_BACKPRESSURE_POLICY = "xds-b-repository.discreteHandler.backpressurePolicy";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_HIGH_QUEUE_DEPTH = "xds-b-repository.discreteHandler.highQueueDepth";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_LOW_QUEUE_DEPTH = "xds-b-repository.discreteHandler.lowQueueDepth";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_HIGH_QUEUE_AGE = "xds-b-repository.discreteHandler.highQueueAge";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_LOW_QUEUE_AGE = "xds-b-repository.discreteHandler.lowQueueAge";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_BACKPRESSURE_MAX_DELAY = "xds-b-repository.discreteHandler.backpressureMaxDelay";
+	public static final String AUDIT_ASYNC_GP = "xds-b-repository.audit.async";
+	public static final String AUDIT_QUEUE_CAPACITY_GP = "xds-b-repository.audit.queueCapacity";
+	public static final String AUDIT_BATCH_SIZE_GP = "xds-b-repository.audit.batchSize";
+	public static final String AUDIT_OVERFLOW_POLICY_GP = "xds-b-repository.audit.overflowPolicy";
+	public static final String ADMISSION_SUBMIT_MAX_CONCURRENT_GP = "xds-b-repository.admission.submitMaxConcurrent";
+	public static final String ADMISSION_SUBMIT_MAX_WAITING_GP = "xds-b-repository.admission.submitMaxWaiting";
+	public static final String ADMISSION_RETRIEVE_MAX_CONCURRENT_GP = "xds-b-repository.admission.retrieveMaxConcurrent";
+	public static final String ADMISSION_RETRIEVE_MAX_WAITING_GP = "xds-b-repository.admission.retrieveMaxWaiting";
+	public static final String ADMISSION_MAX_WAIT_GP = "xds-b-repository.admission.maxWait";
+	public static final String RATE_LIMIT_DEFAULT_GP = "xds-b-repository.rateLimit.default";
+	public static final String RATE_LIMIT_SOURCES_GP = "xds-b-repository.rateLimit.sources";
+	public static final String REPLAY_RETENTION_HOURS_GP = "xds-b-repository.replay.retentionHours";
 	 // JF: Severity 
 	public static final String SEVERITY_ERROR = "urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Error"; 
 	public static final String SEVERITY_WARNING = "urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Warning"; 
 	
 	// JF: Errors 
 	public static final String ERROR_XDS_REPOSITORY_ERROR = "XDSRepositoryError";
+	public static final String ERROR_XDS_REPOSITORY_BUSY = "XDSRepositoryBusy";
 	public static final String XDS_HOME_COMMUNITY_ID = "xds-b-repository.homeCommunityId"; 
 
 	public static final String GP_LOCAL_PATIENT_IDENTIFIER_TYPE_MAP = "xds-b-repository.local_patient_identifierTypeMap.";
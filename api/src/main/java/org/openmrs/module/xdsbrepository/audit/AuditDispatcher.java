@@ -0,0 +1,377 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.xds2.common.audit.XDSAudit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.atna.api.AtnaAuditService;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends ATNA audit messages from a background thread so that the latency of the audit repository
+ * doesn't add to the latency of the clinical transactions being audited.
+ * <p/>
+ * Events are placed on a bounded queue and sent in batches, the audit logger is only looked up
+ * once per batch. When the queue is full the configured {@link OverflowPolicy} applies. Events
+ * still queued when the dispatcher is shut down are sent before it stops, and events that are
+ * dispatched while it isn't running are sent straight away on the calling thread.
+ */
+public class AuditDispatcher {
+
+	/**
+	 * What to do with an event when the queue is full
+	 */
+	public enum OverflowPolicy {
+		/** wait for space on the queue */
+		BLOCK,
+		/** discard the event, the number of discarded events is counted */
+		DROP,
+		/** write the event to disk, it is sent once the queue has drained */
+		SPILL
+	}
+
+	private static final String SPILL_DIRECTORY = "xdsbrepository" + File.separator + "audit-spill";
+	private static final String SPILL_SUFFIX = ".audit";
+	private static final long POLL_SECONDS = 1;
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	// XDSAudit sends through one audit logger for the whole JVM, which is swapped for each event
+	private static final Object SEND_LOCK = new Object();
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong spilledCount = new AtomicLong();
+	private final AtomicLong spillSequence = new AtomicLong();
+
+	private volatile BlockingQueue<AuditEvent> queue;
+	private volatile boolean running;
+	private Thread sender;
+
+	private OverflowPolicy overflowPolicy;
+	private int batchSize;
+	private File spillDirectory;
+
+	/**
+	 * Starts the background sender, does nothing if asynchronous auditing is disabled
+	 */
+	public synchronized void start(XDSbRepositoryConfiguration configuration) {
+		if (sender != null || !configuration.isAuditAsync()) {
+			return;
+		}
+
+		overflowPolicy = parseOverflowPolicy(configuration.getAuditOverflowPolicy());
+		batchSize = Math.max(1, configuration.getAuditBatchSize());
+		spillDirectory = getSpillDirectory();
+		queue = new ArrayBlockingQueue<AuditEvent>(Math.max(1, configuration.getAuditQueueCapacity()));
+		running = true;
+
+		sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sendQueuedEvents();
+			}
+		}, "xdsbrepository-audit-sender");
+		sender.setDaemon(true);
+		sender.start();
+		log.info("Started asynchronous audit dispatcher with overflow policy " + overflowPolicy);
+	}
+
+	/**
+	 * Stops the background sender once every queued event has been sent
+	 */
+	public synchronized void shutdown() {
+		if (sender == null) {
+			return;
+		}
+
+		running = false;
+		try {
+			sender.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS));
+			if (sender.isAlive()) {
+				log.error("Timeout waiting for queued audit messages to be sent before module shutdown.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// anything queued while the sender was finishing up
+		List<AuditEvent> remaining = new ArrayList<AuditEvent>();
+		queue.drainTo(remaining);
+		if (!remaining.isEmpty()) {
+			send(remaining);
+		}
+
+		sender = null;
+		queue = null;
+		if (droppedCount.get() > 0) {
+			log.warn(droppedCount.get() + " audit messages were dropped as the audit queue was full");
+		}
+	}
+
+	/**
+	 * Queues an event to be sent, or sends it straight away if the dispatcher isn't running
+	 */
+	public void dispatch(AuditEvent event) {
+		BlockingQueue<AuditEvent> queue = this.queue;
+		if (queue == null || !running) {
+			send(Collections.singletonList(event));
+			return;
+		}
+		if (queue.offer(event)) {
+			return;
+		}
+
+		switch (overflowPolicy) {
+			case BLOCK:
+				try {
+					while (!queue.offer(event, POLL_SECONDS, TimeUnit.SECONDS)) {
+						if (!running) {
+							send(Collections.singletonList(event));
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					drop();
+				}
+				break;
+			case SPILL:
+				spill(event);
+				break;
+			default:
+				drop();
+		}
+	}
+
+	/**
+	 * @return the number of events discarded as the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of events written to disk as the queue was full
+	 */
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	/**
+	 * @return the number of events waiting to be sent
+	 */
+	public int getQueueSize() {
+		BlockingQueue<AuditEvent> queue = this.queue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * Sends a batch of events, failures are logged so that one bad event doesn't lose the rest. Only
+	 * one batch is sent at a time across all dispatchers.
+	 *
+	 * @return the events that could not be sent
+	 */
+	protected List<AuditEvent> send(List<AuditEvent> batch) {
+		List<AuditEvent> failed = new ArrayList<AuditEvent>();
+		boolean sessionOpened = false;
+		try {
+			if (!Context.isSessionOpen()) {
+				Context.openSession();
+				sessionOpened = true;
+			}
+			AuditLogger logger = Context.getService(AtnaAuditService.class).getLogger();
+			// events sent on request threads while the dispatcher isn't running take turns with the
+			// sender, so that no event is sent through the logger installed for another
+			synchronized (SEND_LOCK) {
+				try {
+					for (AuditEvent event : batch) {
+						try {
+							// the message is stamped with the time the event happened rather than the time it is sent
+							XDSAudit.setAuditLogger(new EventTimeAuditLogger(logger, event.getEventDateTime()));
+							event.send();
+						} catch (RuntimeException e) {
+							log.error("Failed to send audit message " + event.getClass().getSimpleName(), e);
+							failed.add(event);
+						}
+					}
+				} finally {
+					XDSAudit.setAuditLogger(logger);
+				}
+			}
+		} catch (RuntimeException e) {
+			log.error("Failed to send " + batch.size() + " audit messages", e);
+			failed.clear();
+			failed.addAll(batch);
+		} finally {
+			if (sessionOpened) {
+				Context.closeSession();
+			}
+		}
+		return failed;
+	}
+
+	protected File getSpillDirectory() {
+		return OpenmrsUtil.getDirectoryInApplicationDataDirectory(SPILL_DIRECTORY);
+	}
+
+	private void sendQueuedEvents() {
+		List<AuditEvent> batch = new ArrayList<AuditEvent>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				AuditEvent first = queue.poll(POLL_SECONDS, TimeUnit.SECONDS);
+				if (first == null) {
+					sendSpilledEvents();
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				send(batch);
+			} catch (InterruptedException e) {
+				// only the shutdown timeout can end the sender
+			} catch (RuntimeException e) {
+				log.error("Unexpected error in the audit sender", e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void drop() {
+		long dropped = droppedCount.incrementAndGet();
+		if (dropped == 1 || dropped % 100 == 0) {
+			log.warn("Audit queue is full, " + dropped + " audit messages have been dropped so far");
+		}
+	}
+
+	private void spill(AuditEvent event) {
+		String name = System.currentTimeMillis() + "-" + spillSequence.incrementAndGet();
+		File tmp = new File(spillDirectory, name + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new FileOutputStream(tmp));
+			out.writeObject(event);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(new File(spillDirectory, name + SPILL_SUFFIX))) {
+				throw new IOException("Could not rename " + tmp);
+			}
+			spilledCount.incrementAndGet();
+		} catch (IOException e) {
+			log.error("Could not write audit message to " + spillDirectory, e);
+			tmp.delete();
+			drop();
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Sends the events written to disk, oldest first, while the queue has nothing waiting. Sending
+	 * stops at the first batch that couldn't be sent in full, the rest are tried again on the next
+	 * idle poll.
+	 */
+	private void sendSpilledEvents() {
+		if (spillDirectory == null) {
+			return;
+		}
+		File[] files = spillDirectory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SPILL_SUFFIX);
+			}
+		});
+		if (files == null || files.length == 0) {
+			return;
+		}
+		Arrays.sort(files);
+
+		Map<AuditEvent, File> batch = new LinkedHashMap<AuditEvent, File>();
+		for (File file : files) {
+			if (!running || !queue.isEmpty()) {
+				break;
+			}
+			AuditEvent event = readSpilledEvent(file);
+			if (event == null) {
+				delete(file);
+				continue;
+			}
+			batch.put(event, file);
+			if (batch.size() >= batchSize && !sendSpilledBatch(batch)) {
+				return;
+			}
+		}
+		if (!batch.isEmpty()) {
+			sendSpilledBatch(batch);
+		}
+	}
+
+	/**
+	 * Sends a batch of spilled events, only the files of the events that were sent are deleted
+	 *
+	 * @return true if every event was sent
+	 */
+	private boolean sendSpilledBatch(Map<AuditEvent, File> batch) {
+		List<AuditEvent> failed = send(new ArrayList<AuditEvent>(batch.keySet()));
+		for (Map.Entry<AuditEvent, File> entry : batch.entrySet()) {
+			if (!failed.contains(entry.getKey())) {
+				delete(entry.getValue());
+			}
+		}
+		batch.clear();
+		if (!failed.isEmpty()) {
+			log.warn(failed.size() + " spilled audit messages could not be sent, they will be retried later");
+		}
+		return failed.isEmpty();
+	}
+
+	private AuditEvent readSpilledEvent(File file) {
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new FileInputStream(file));
+			return (AuditEvent) in.readObject();
+		} catch (Exception e) {
+			log.error("Could not read audit message from " + file + ", it will be discarded", e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private void delete(File file) {
+		if (!file.delete()) {
+			log.warn("Could not delete spilled audit message " + file);
+		}
+	}
+
+	private OverflowPolicy parseOverflowPolicy(String value) {
+		try {
+			return OverflowPolicy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown audit overflow policy " + value + ", using " + OverflowPolicy.SPILL);
+			return OverflowPolicy.SPILL;
+		}
+	}
+
+}
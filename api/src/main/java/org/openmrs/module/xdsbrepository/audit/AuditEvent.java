@@ -0,0 +1,34 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+/**
+ * An ATNA audit message waiting to be sent by the {@link AuditDispatcher}.
+ * <p/>
+ * Events only hold the plain values needed to build the message so that they can be queued
+ * without keeping request objects (and their document payloads) alive and can be written to
+ * disk when the queue overflows. The time an event happened is captured when it is created and
+ * used as the EventDateTime of the message, however long the event waits to be sent.
+ */
+public abstract class AuditEvent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long eventTime = System.currentTimeMillis();
+
+	/**
+	 * @return the time the audited event happened
+	 */
+	public Calendar getEventDateTime() {
+		Calendar eventDateTime = Calendar.getInstance();
+		eventDateTime.setTimeInMillis(eventTime);
+		return eventDateTime;
+	}
+
+	/**
+	 * Sends the audit message, the audit logger must already be set on XDSAudit
+	 */
+	public abstract void send();
+
+}
@@ -0,0 +1,160 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.dcm4che3.audit.AuditMessage;
+import org.dcm4che3.audit.AuditSourceIdentification;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.audit.AuditLogger;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Passes the messages built by XDSAudit on to the configured audit logger, stamping them with the
+ * time of the audited event. XDSAudit takes the EventDateTime of a message from the logger's
+ * {@link #timeStamp()}, which would otherwise be the time the message is sent.
+ * <p/>
+ * Everything else is answered by the configured logger, so that messages are built and written
+ * with its settings. It is only installed on XDSAudit while the {@link AuditDispatcher} sends one
+ * event.
+ */
+class EventTimeAuditLogger extends AuditLogger {
+
+	private static final long serialVersionUID = 1L;
+
+	private final AuditLogger logger;
+
+	private final Calendar eventDateTime;
+
+	EventTimeAuditLogger(AuditLogger logger, Calendar eventDateTime) {
+		this.logger = logger;
+		this.eventDateTime = eventDateTime;
+	}
+
+	@Override
+	public Calendar timeStamp() {
+		return (Calendar) eventDateTime.clone();
+	}
+
+	@Override
+	public void write(Calendar timeStamp, AuditMessage message) throws IncompatibleConnectionException,
+			GeneralSecurityException, IOException {
+		message.getEventIdentification().setEventDateTime(timeStamp());
+		logger.write(timeStamp, message);
+	}
+
+	@Override
+	public void write(Calendar timeStamp, Severity severity, byte[] data, int off, int len)
+			throws IncompatibleConnectionException, GeneralSecurityException, IOException {
+		logger.write(timeStamp, severity, data, off, len);
+	}
+
+	@Override
+	public boolean isInstalled() {
+		return logger.isInstalled();
+	}
+
+	@Override
+	public Boolean getInstalled() {
+		return logger.getInstalled();
+	}
+
+	@Override
+	public AuditSourceIdentification createAuditSourceIdentification() {
+		return logger.createAuditSourceIdentification();
+	}
+
+	@Override
+	public Device getAuditRecordRepositoryDevice() {
+		return logger.getAuditRecordRepositoryDevice();
+	}
+
+	@Override
+	public List<Connection> getConnections() {
+		return logger.getConnections();
+	}
+
+	@Override
+	public Facility getFacility() {
+		return logger.getFacility();
+	}
+
+	@Override
+	public Severity getSuccessSeverity() {
+		return logger.getSuccessSeverity();
+	}
+
+	@Override
+	public Severity getMinorFailureSeverity() {
+		return logger.getMinorFailureSeverity();
+	}
+
+	@Override
+	public Severity getSeriousFailureSeverity() {
+		return logger.getSeriousFailureSeverity();
+	}
+
+	@Override
+	public Severity getMajorFailureSeverity() {
+		return logger.getMajorFailureSeverity();
+	}
+
+	@Override
+	public String getApplicationName() {
+		return logger.getApplicationName();
+	}
+
+	@Override
+	public String getAuditSourceID() {
+		return logger.getAuditSourceID();
+	}
+
+	@Override
+	public String getAuditEnterpriseSiteID() {
+		return logger.getAuditEnterpriseSiteID();
+	}
+
+	@Override
+	public String[] getAuditSourceTypeCodes() {
+		return logger.getAuditSourceTypeCodes();
+	}
+
+	@Override
+	public String getMessageID() {
+		return logger.getMessageID();
+	}
+
+	@Override
+	public String getEncoding() {
+		return logger.getEncoding();
+	}
+
+	@Override
+	public String getSchemaURI() {
+		return logger.getSchemaURI();
+	}
+
+	@Override
+	public boolean isTimestampInUTC() {
+		return logger.isTimestampInUTC();
+	}
+
+	@Override
+	public boolean isIncludeBOM() {
+		return logger.isIncludeBOM();
+	}
+
+	@Override
+	public boolean isFormatXML() {
+		return logger.isFormatXML();
+	}
+
+	@Override
+	public Device getDevice() {
+		return logger.getDevice();
+	}
+
+}
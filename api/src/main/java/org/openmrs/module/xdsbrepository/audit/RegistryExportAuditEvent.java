@@ -0,0 +1,50 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.dcm4che3.audit.AuditMessages.EventTypeCode;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
+import org.dcm4chee.xds2.common.audit.XDSAudit;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Audit of a register document set-b (ITI-42) or register on-demand document entry (ITI-61)
+ * request sent by the repository to the registry
+ */
+public class RegistryExportAuditEvent extends AuditEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean onDemand;
+	private final String submissionSetUID;
+	private final String patID;
+	private final String registryUrl;
+	private final boolean success;
+
+	public RegistryExportAuditEvent(boolean onDemand, String submissionSetUID, String patID, URL registryUrl, boolean success) {
+		this.onDemand = onDemand;
+		this.submissionSetUID = submissionSetUID;
+		this.patID = patID;
+		this.registryUrl = registryUrl.toExternalForm();
+		this.success = success;
+	}
+
+	@Override
+	public void send() {
+		EventTypeCode eventTypeCode = onDemand
+				? new EventTypeCode("ITI-61", "IHE Transactions", "Register On-Demand Document Entry")
+				: EventTypeCode.ITI_42_RegisterDocumentSetB;
+		AuditRequestInfo info = new AuditRequestInfo(null, null);
+		String host;
+		try {
+			host = new URL(registryUrl).getHost();
+		} catch (MalformedURLException e) {
+			host = registryUrl;
+		}
+		XDSAudit.logExport(eventTypeCode, submissionSetUID, patID, XDSConstants.WS_ADDRESSING_ANONYMOUS,
+				AuditLogger.processID(), info.getLocalHost(), registryUrl, null, host, null, null, success);
+	}
+
+}
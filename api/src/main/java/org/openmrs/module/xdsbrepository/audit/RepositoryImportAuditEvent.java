@@ -0,0 +1,28 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
+import org.dcm4chee.xds2.common.audit.XDSAudit;
+
+/**
+ * Audit of a provide and register document set-b (ITI-41) request received by the repository
+ */
+public class RepositoryImportAuditEvent extends AuditEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String submissionSetUID;
+	private final String patID;
+	private final boolean success;
+
+	public RepositoryImportAuditEvent(String submissionSetUID, String patID, boolean success) {
+		this.submissionSetUID = submissionSetUID;
+		this.patID = patID;
+		this.success = success;
+	}
+
+	@Override
+	public void send() {
+		XDSAudit.logRepositoryImport(submissionSetUID, patID, new AuditRequestInfo(null, null), success);
+	}
+
+}
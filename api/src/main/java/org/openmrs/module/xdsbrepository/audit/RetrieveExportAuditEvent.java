@@ -0,0 +1,71 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
+import org.dcm4chee.xds2.common.audit.XDSAudit;
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetRequestType;
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetResponseType;
+import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Audit of a retrieve document set (ITI-43) request answered by the repository. Only the
+ * document identifiers are kept, the retrieved documents themselves are not part of the audit.
+ */
+public class RetrieveExportAuditEvent extends AuditEvent {
+
+	private static final long serialVersionUID = 1L;
+
+	// each entry is { homeCommunityId, repositoryUniqueId, documentUniqueId }
+	private final List<String[]> requested = new ArrayList<String[]>();
+
+	// each entry is { homeCommunityId, repositoryUniqueId, documentUniqueId, mimeType }
+	private final List<String[]> retrieved = new ArrayList<String[]>();
+
+	private final String status;
+
+	public RetrieveExportAuditEvent(RetrieveDocumentSetRequestType req, RetrieveDocumentSetResponseType rsp) {
+		if (req != null) {
+			for (RetrieveDocumentSetRequestType.DocumentRequest docReq : req.getDocumentRequest()) {
+				requested.add(new String[] { docReq.getHomeCommunityId(), docReq.getRepositoryUniqueId(),
+						docReq.getDocumentUniqueId() });
+			}
+		}
+		for (RetrieveDocumentSetResponseType.DocumentResponse docRsp : rsp.getDocumentResponse()) {
+			retrieved.add(new String[] { docRsp.getHomeCommunityId(), docRsp.getRepositoryUniqueId(),
+					docRsp.getDocumentUniqueId(), docRsp.getMimeType() });
+		}
+		status = rsp.getRegistryResponse() == null ? null : rsp.getRegistryResponse().getStatus();
+	}
+
+	@Override
+	public void send() {
+		RetrieveDocumentSetRequestType req = new RetrieveDocumentSetRequestType();
+		for (String[] ids : requested) {
+			RetrieveDocumentSetRequestType.DocumentRequest docReq = new RetrieveDocumentSetRequestType.DocumentRequest();
+			docReq.setHomeCommunityId(ids[0]);
+			docReq.setRepositoryUniqueId(ids[1]);
+			docReq.setDocumentUniqueId(ids[2]);
+			req.getDocumentRequest().add(docReq);
+		}
+
+		RetrieveDocumentSetResponseType rsp = new RetrieveDocumentSetResponseType();
+		for (String[] ids : retrieved) {
+			RetrieveDocumentSetResponseType.DocumentResponse docRsp = new RetrieveDocumentSetResponseType.DocumentResponse();
+			docRsp.setHomeCommunityId(ids[0]);
+			docRsp.setRepositoryUniqueId(ids[1]);
+			docRsp.setDocumentUniqueId(ids[2]);
+			docRsp.setMimeType(ids[3]);
+			rsp.getDocumentResponse().add(docRsp);
+		}
+		if (status != null) {
+			RegistryResponseType regRsp = new RegistryResponseType();
+			regRsp.setStatus(status);
+			rsp.setRegistryResponse(regRsp);
+		}
+
+		XDSAudit.logRepositoryRetrieveExport(req, rsp, new AuditRequestInfo(null, null));
+	}
+
+}
@@ -0,0 +1,272 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the documents that were just stored over to the discrete data processors, so that they
+ * don't have to read them back from the unstructured data store.
+ * <p/>
+ * Documents are kept in memory up to handoffCacheSize bytes. When that is used up the oldest are
+ * written to local disk, up to handoffSpillSize bytes, and after that they are dropped. A document
+ * is removed when a processor takes it or when it has been kept for handoffTtl seconds. A processor
+ * that doesn't find a document, e.g. because it was queued on another node, reads it from the store.
+ */
+public class ContentHandoffCache {
+
+	private static final String SPILL_DIRECTORY = "xdsbrepository" + File.separator + "handoff-spill";
+	private static final String SPILL_SUFFIX = ".content";
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	@Autowired
+	@Qualifier("xdsbrepository.configurationManager")
+	private ConfigurationManager configurationManager;
+
+	/** in the order the documents were stored, so the oldest are spilled or dropped first */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	private long memoryBytes;
+	private long spilledBytes;
+
+	private final AtomicLong spillSequence = new AtomicLong();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * A stored document, its payload is either in memory or in a spill file
+	 */
+	private static class Entry {
+		String contentId;
+		byte[] payload;
+		File spillFile;
+		int size;
+		CodedValue typeCode;
+		CodedValue formatCode;
+		String contentType;
+		long expiresAt;
+	}
+
+	/**
+	 * Keeps a document that was just stored for the processors, replacing any earlier version
+	 */
+	public void put(Content content) {
+		XDSbRepositoryConfiguration configuration = getConfiguration();
+		long maxMemory = configuration.getAsyncHandoffCacheSize();
+		if (maxMemory <= 0 || content.getPayload() == null) {
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.contentId = content.getContentId();
+		entry.payload = content.getPayload();
+		entry.size = entry.payload.length;
+		entry.typeCode = content.getTypeCode();
+		entry.formatCode = content.getFormatCode();
+		entry.contentType = content.getContentType();
+		entry.expiresAt = System.currentTimeMillis() + configuration.getAsyncHandoffTtl() * 1000L;
+
+		synchronized (this) {
+			removeExpired();
+			Entry previous = entries.remove(entry.contentId);
+			if (previous != null) {
+				release(previous);
+			}
+			entries.put(entry.contentId, entry);
+			memoryBytes += entry.size;
+
+			// move the oldest documents out of memory until the newest fits
+			long maxSpill = configuration.getAsyncHandoffSpillSize();
+			Iterator<Entry> oldest = entries.values().iterator();
+			while (memoryBytes > maxMemory && oldest.hasNext()) {
+				Entry candidate = oldest.next();
+				if (candidate.payload == null) {
+					continue;
+				}
+				memoryBytes -= candidate.size;
+				if (spilledBytes + candidate.size <= maxSpill && spill(candidate)) {
+					spilledBytes += candidate.size;
+				} else {
+					oldest.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes a document and returns it
+	 *
+	 * @return the document or null if it isn't kept, the processor then has to read it from the store
+	 */
+	public Content take(String docUniqueId) {
+		Entry entry;
+		byte[] payload;
+		synchronized (this) {
+			entry = entries.remove(docUniqueId);
+			if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+				if (entry != null) {
+					release(entry);
+				}
+				missCount.incrementAndGet();
+				return null;
+			}
+			payload = entry.payload;
+			if (payload != null) {
+				memoryBytes -= entry.size;
+			} else {
+				spilledBytes -= entry.size;
+			}
+		}
+
+		// read outside the lock so that a slow disk doesn't hold up the submissions
+		if (payload == null) {
+			payload = readSpillFile(entry.spillFile);
+			entry.spillFile.delete();
+			if (payload == null) {
+				missCount.incrementAndGet();
+				return null;
+			}
+		}
+		hitCount.incrementAndGet();
+		return new Content(entry.contentId, payload, entry.typeCode, entry.formatCode, entry.contentType);
+	}
+
+	/**
+	 * Drops every document, including the ones on disk
+	 */
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			release(entry);
+		}
+		entries.clear();
+		memoryBytes = 0;
+		spilledBytes = 0;
+
+		// files left behind by a crash
+		File[] files = getSpillDirectory().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of documents that were taken from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of documents that had to be read from the store
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public synchronized long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	protected File getSpillDirectory() {
+		return OpenmrsUtil.getDirectoryInApplicationDataDirectory(SPILL_DIRECTORY);
+	}
+
+	private void removeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.expiresAt < now) {
+				iterator.remove();
+				release(entry);
+			}
+		}
+	}
+
+	/**
+	 * Gives back the memory or disk space used by a removed entry
+	 */
+	private void release(Entry entry) {
+		if (entry.payload != null) {
+			memoryBytes -= entry.size;
+			entry.payload = null;
+		} else if (entry.spillFile != null) {
+			spilledBytes -= entry.size;
+			entry.spillFile.delete();
+		}
+	}
+
+	private boolean spill(Entry entry) {
+		File file = new File(getSpillDirectory(), spillSequence.incrementAndGet() + SPILL_SUFFIX);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.write(entry.payload);
+			out.close();
+			out = null;
+			entry.spillFile = file;
+			entry.payload = null;
+			return true;
+		} catch (IOException e) {
+			log.warn("Could not write document " + entry.contentId + " to " + file + ", it will be read from the store", e);
+			file.delete();
+			return false;
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private byte[] readSpillFile(File file) {
+		DataInputStream in = null;
+		try {
+			byte[] payload = new byte[(int) file.length()];
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in.readFully(payload);
+			return payload;
+		} catch (IOException e) {
+			log.warn("Could not read " + file + ", the document will be read from the store", e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	protected XDSbRepositoryConfiguration getConfiguration() {
+		return getConfigurationManager().getConfiguration();
+	}
+
+	protected ConfigurationManager getConfigurationManager() {
+		if (configurationManager == null) {
+			configurationManager = Utils.getConfigurationManager();
+		}
+		return configurationManager;
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory cache of the metadata the repository resolves for every submitted document.
+ * <p/>
+ * Database identifiers rather than entities are cached as the Hibernate session that loaded an
+ * entity is closed at the end of each request, a primary key lookup is then enough to get an
+ * attached instance again.
+ */
+public class MetadataCache {
+
+	// location uuid -> the software version last stored against that location
+	private final ConcurrentMap<String, String> softwareVersionsByLocation = new ConcurrentHashMap<String, String>();
+
+	private volatile Integer softwareVersionAttributeTypeId;
+
+	// form uuid -> form id
+	private final ConcurrentMap<String, Integer> formIds = new ConcurrentHashMap<String, Integer>();
+
+	// encounter type lookup key (uuid and class code) -> encounter type id
+	private final ConcurrentMap<String, Integer> encounterTypeIds = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * @param locationUuid - the uuid of the facility location
+	 * @return the software version known to be stored for the location or null if unknown
+	 */
+	public String getSoftwareVersion(String locationUuid) {
+		return softwareVersionsByLocation.get(locationUuid);
+	}
+
+	/**
+	 * Records the software version that is stored for a location
+	 */
+	public void putSoftwareVersion(String locationUuid, String softwareVersion) {
+		if (locationUuid != null && softwareVersion != null) {
+			softwareVersionsByLocation.put(locationUuid, softwareVersion);
+		}
+	}
+
+	public void evictSoftwareVersion(String locationUuid) {
+		softwareVersionsByLocation.remove(locationUuid);
+	}
+
+	public Integer getSoftwareVersionAttributeTypeId() {
+		return softwareVersionAttributeTypeId;
+	}
+
+	public void setSoftwareVersionAttributeTypeId(Integer softwareVersionAttributeTypeId) {
+		this.softwareVersionAttributeTypeId = softwareVersionAttributeTypeId;
+	}
+
+	public Integer getFormId(String formUuid) {
+		return formIds.get(formUuid);
+	}
+
+	public void putFormId(String formUuid, Integer formId) {
+		if (formUuid != null && formId != null) {
+			formIds.put(formUuid, formId);
+		}
+	}
+
+	public void evictFormId(String formUuid) {
+		formIds.remove(formUuid);
+	}
+
+	/**
+	 * @param lookupKey - the key built from the values used to resolve the encounter type
+	 * @return the id of the encounter type that the key resolved to or null if unknown
+	 */
+	public Integer getEncounterTypeId(String lookupKey) {
+		return encounterTypeIds.get(lookupKey);
+	}
+
+	public void putEncounterTypeId(String lookupKey, Integer encounterTypeId) {
+		if (lookupKey != null && encounterTypeId != null) {
+			encounterTypeIds.put(lookupKey, encounterTypeId);
+		}
+	}
+
+	public void evictEncounterTypeId(String lookupKey) {
+		encounterTypeIds.remove(lookupKey);
+	}
+
+	/**
+	 * Drops everything that has been cached
+	 */
+	public void clear() {
+		softwareVersionsByLocation.clear();
+		softwareVersionAttributeTypeId = null;
+		formIds.clear();
+		encounterTypeIds.clear();
+	}
+
+}
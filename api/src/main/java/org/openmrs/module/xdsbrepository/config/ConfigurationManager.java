@@ -0,0 +1,92 @@
+package org.openmrs.module.xdsbrepository.config;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link XDSbRepositoryConfiguration}. The snapshot is loaded once and then
+ * swapped atomically when the module's global properties are changed, so request processing
+ * never has to query the global property table.
+ */
+public class ConfigurationManager implements GlobalPropertyListener {
+
+	private final AtomicReference<XDSbRepositoryConfiguration> configuration = new AtomicReference<XDSbRepositoryConfiguration>();
+
+	private final AtomicBoolean listening = new AtomicBoolean(false);
+
+	/**
+	 * @return the current configuration snapshot, loading it if this is the first use
+	 */
+	public XDSbRepositoryConfiguration getConfiguration() {
+		XDSbRepositoryConfiguration current = configuration.get();
+		if (current == null) {
+			current = reload();
+		}
+		return current;
+	}
+
+	/**
+	 * Reads a fresh snapshot of the module's global properties
+	 */
+	public XDSbRepositoryConfiguration reload() {
+		if (listening.compareAndSet(false, true)) {
+			Context.getAdministrationService().addGlobalPropertyListener(this);
+		}
+		XDSbRepositoryConfiguration loaded = XDSbRepositoryConfiguration.load(Context.getAdministrationService());
+		configuration.set(loaded);
+		return loaded;
+	}
+
+	/**
+	 * Stops listening for global property changes and drops the current snapshot
+	 */
+	public void shutdown() {
+		if (listening.compareAndSet(true, false)) {
+			Context.getAdministrationService().removeGlobalPropertyListener(this);
+		}
+		configuration.set(null);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(XDSbServiceConstants.GP_PREFIX);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		XDSbRepositoryConfiguration current;
+		do {
+			current = configuration.get();
+			if (current == null) {
+				// not loaded yet, the change will be picked up when it is
+				return;
+			}
+		} while (!configuration.compareAndSet(current, current.with(newValue.getProperty(), newValue.getPropertyValue())));
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		XDSbRepositoryConfiguration current;
+		do {
+			current = configuration.get();
+			if (current == null) {
+				return;
+			}
+		} while (!configuration.compareAndSet(current, current.without(propertyName)));
+	}
+
+}
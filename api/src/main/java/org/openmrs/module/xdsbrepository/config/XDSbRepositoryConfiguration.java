@@ -0,0 +1,530 @@
+package org.openmrs.module.xdsbrepository.config;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.queue.QueueRoute;
+import org.openmrs.module.xdsbrepository.ratelimit.RateLimit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the module's global properties. A snapshot is read in one query and
+ * then replaced as a whole whenever one of the properties changes, see {@link ConfigurationManager}.
+ * Properties that are read on every submission or claim and need parsing are parsed once, when the
+ * snapshot is built.
+ */
+public final class XDSbRepositoryConfiguration {
+
+	private static final Log log = LogFactory.getLog(XDSbRepositoryConfiguration.class);
+
+	public static final String DEFAULT_LOCATION_LOOKUP_ATTRIBUTE_TYPE_UUID = "6242bf19-207e-4076-9d28-9290525b8ed9";
+
+	private final Map<String, String> properties;
+
+	private final Set<String> asyncBulkSourceIds;
+
+	private final List<QueueRoute> asyncRoutes;
+
+	private final RateLimit rateLimitDefault;
+
+	private final Map<String, RateLimit> rateLimitSources;
+
+	private XDSbRepositoryConfiguration(Map<String, String> properties) {
+		this.properties = Collections.unmodifiableMap(properties);
+		this.asyncBulkSourceIds = Collections.unmodifiableSet(parseAsyncBulkSourceIds(
+				getProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_BULK_SOURCE_IDS, null)));
+		this.asyncRoutes = Collections.unmodifiableList(parseAsyncRoutes(
+				getProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_POOLS, null)));
+		this.rateLimitDefault = parseRateLimitDefault(getProperty(XDSbServiceConstants.RATE_LIMIT_DEFAULT_GP, null));
+		this.rateLimitSources = Collections.unmodifiableMap(parseRateLimitSources(
+				getProperty(XDSbServiceConstants.RATE_LIMIT_SOURCES_GP, null)));
+	}
+
+	/**
+	 * Reads all of the module's global properties
+	 */
+	public static XDSbRepositoryConfiguration load(AdministrationService as) {
+		Map<String, String> properties = new HashMap<String, String>();
+		for (GlobalProperty gp : as.getGlobalPropertiesByPrefix(XDSbServiceConstants.GP_PREFIX)) {
+			properties.put(gp.getProperty(), gp.getPropertyValue());
+		}
+		return new XDSbRepositoryConfiguration(properties);
+	}
+
+	/**
+	 * @return a copy of this snapshot with the given property set to value
+	 */
+	public XDSbRepositoryConfiguration with(String property, String value) {
+		Map<String, String> copy = new HashMap<String, String>(properties);
+		copy.put(property, value);
+		return new XDSbRepositoryConfiguration(copy);
+	}
+
+	/**
+	 * @return a copy of this snapshot without the given property
+	 */
+	public XDSbRepositoryConfiguration without(String property) {
+		Map<String, String> copy = new HashMap<String, String>(properties);
+		copy.remove(property);
+		return new XDSbRepositoryConfiguration(copy);
+	}
+
+	public String getProperty(String property) {
+		return properties.get(property);
+	}
+
+	public String getProperty(String property, String defaultValue) {
+		String value = properties.get(property);
+		return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+	}
+
+	public boolean getBoolean(String property, boolean defaultValue) {
+		String value = getProperty(property, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	public int getInt(String property, int defaultValue) {
+		String value = getProperty(property, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			log.warn("Global property " + property + " is not a valid number (" + value + "), using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public long getLong(String property, long defaultValue) {
+		String value = getProperty(property, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			log.warn("Global property " + property + " is not a valid number (" + value + "), using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public String getRegistryUrl() {
+		return getProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP);
+	}
+
+	public String getRepositoryUniqueId() {
+		return getProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP);
+	}
+
+	public String getHomeCommunityId() {
+		return getProperty(XDSbServiceConstants.XDS_HOME_COMMUNITY_ID);
+	}
+
+	public String getWsUsername() {
+		return getProperty(XDSbServiceConstants.WS_USERNAME_GP);
+	}
+
+	public String getWsPassword() {
+		return getProperty(XDSbServiceConstants.WS_PASSWORD_GP);
+	}
+
+	/**
+	 * @return the number of seconds an authenticated web service user context is re-used for
+	 */
+	public int getWsSessionTimeout() {
+		return getInt(XDSbServiceConstants.WS_SESSION_TIMEOUT_GP, 600);
+	}
+
+	public boolean isAutoCreatePatients() {
+		return getBoolean(XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_PATIENTS, false);
+	}
+
+	public boolean isDiscreteHandlerAsync() {
+		return getBoolean(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC, false);
+	}
+
+	public int getAsyncPollingPeriod() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_POLL_PERIOD, 100);
+	}
+
+	public int getAsyncMaxTasks() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS, 6);
+	}
+
+	/**
+	 * @return the number of queue items a discrete data processor claims at a time
+	 */
+	public int getAsyncClaimBatchSize() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_CLAIM_BATCH_SIZE, 5);
+	}
+
+	/**
+	 * @return the number of seconds a worker's claim on a queue item is valid for
+	 */
+	public int getAsyncLeaseSeconds() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_LEASE_SECONDS, 600);
+	}
+
+	/**
+	 * @return the number of seconds between checks for queue items with an expired lease
+	 */
+	public int getAsyncReaperInterval() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_REAPER_INTERVAL, 60);
+	}
+
+	/**
+	 * @return the number of times a queue item is attempted before it is marked as dead
+	 */
+	public int getAsyncMaxAttempts() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_MAX_ATTEMPTS, 5);
+	}
+
+	/**
+	 * @return the number of seconds before the first retry of a failed queue item, doubled for each further retry
+	 */
+	public int getAsyncRetryBaseDelay() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_RETRY_BASE_DELAY, 30);
+	}
+
+	/**
+	 * @return the maximum number of seconds between retries of a failed queue item
+	 */
+	public int getAsyncRetryMaxDelay() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_RETRY_MAX_DELAY, 3600);
+	}
+
+	/**
+	 * @return the number of ms an idle processor waits before checking the queue if it isn't signalled
+	 */
+	public int getAsyncIdlePollPeriod() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_IDLE_POLL_PERIOD, 5000);
+	}
+
+	/**
+	 * @return the number of live queue items claimed for every bulk queue item while both are waiting
+	 */
+	public int getAsyncLiveWeight() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_LIVE_WEIGHT, 4);
+	}
+
+	/**
+	 * @return the submission set source ids whose documents are queued with bulk priority
+	 */
+	public Set<String> getAsyncBulkSourceIds() {
+		return asyncBulkSourceIds;
+	}
+
+	private static Set<String> parseAsyncBulkSourceIds(String value) {
+		Set<String> sourceIds = new HashSet<String>();
+		if (value != null) {
+			for (String sourceId : value.split(",")) {
+				if (sourceId.trim().length() > 0) {
+					sourceIds.add(sourceId.trim());
+				}
+			}
+		}
+		return sourceIds;
+	}
+
+	/**
+	 * @return the routes of the named processor pools
+	 */
+	public List<QueueRoute> getAsyncRoutes() {
+		return asyncRoutes;
+	}
+
+	/**
+	 * Parses the named processor pools, written as name:size=code,code;name:size=code;... where the
+	 * codes are document type or format codes. Invalid pools are skipped.
+	 */
+	private static List<QueueRoute> parseAsyncRoutes(String value) {
+		List<QueueRoute> routes = new ArrayList<QueueRoute>();
+		if (value == null) {
+			return routes;
+		}
+
+		Set<String> names = new HashSet<String>();
+		for (String pool : value.split(";")) {
+			if (pool.trim().length() == 0) {
+				continue;
+			}
+			int equals = pool.indexOf('=');
+			int colon = pool.indexOf(':');
+			if (colon < 0 || equals < colon) {
+				log.warn("Ignoring discrete data processor pool '" + pool + "', expected name:size=code,code");
+				continue;
+			}
+
+			String name = pool.substring(0, colon).trim();
+			int size;
+			try {
+				size = Integer.parseInt(pool.substring(colon + 1, equals).trim());
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring discrete data processor pool '" + pool + "', the size is not a valid number");
+				continue;
+			}
+			Set<String> codes = new HashSet<String>();
+			for (String code : pool.substring(equals + 1).split(",")) {
+				if (code.trim().length() > 0) {
+					codes.add(code.trim());
+				}
+			}
+			if (name.length() == 0 || QueueRoute.DEFAULT_NAME.equals(name) || !names.add(name) || codes.isEmpty()) {
+				log.warn("Ignoring discrete data processor pool '" + pool + "', it needs a unique name and at least one code");
+				continue;
+			}
+			routes.add(QueueRoute.named(name, Math.max(0, size), codes));
+		}
+		return routes;
+	}
+
+	/**
+	 * @return true if the number of processors is adjusted between minTasks and asyncMaxTasks to suit the load
+	 */
+	public boolean isAsyncAdaptiveConcurrency() {
+		return getBoolean(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ADAPTIVE_CONCURRENCY, false);
+	}
+
+	/**
+	 * @return the fewest processors run when the number of processors is adaptive
+	 */
+	public int getAsyncMinTasks() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_MIN_TASKS, 1);
+	}
+
+	/**
+	 * @return the average number of ms per queue item above which the number of processors is reduced
+	 */
+	public int getAsyncTargetLatency() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_TARGET_LATENCY, 2000);
+	}
+
+	/**
+	 * @return the number of seconds between adjustments of the number of processors
+	 */
+	public int getAsyncAdjustInterval() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ADJUST_INTERVAL, 30);
+	}
+
+	/**
+	 * @return the number of days finished queue items are kept for before they are purged, 0 keeps them
+	 */
+	public int getAsyncRetentionDays() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_RETENTION_DAYS, 30);
+	}
+
+	/**
+	 * @return the number of seconds between runs of the queue purge
+	 */
+	public int getAsyncPurgeInterval() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_PURGE_INTERVAL, 3600);
+	}
+
+	/**
+	 * @return the maximum number of queue items purged in one transaction
+	 */
+	public int getAsyncPurgeBatchSize() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_PURGE_BATCH_SIZE, 500);
+	}
+
+	/**
+	 * @return the number of ms the queue purge pauses between batches
+	 */
+	public int getAsyncPurgePause() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_PURGE_PAUSE, 200);
+	}
+
+	/**
+	 * @return the most bytes of recently stored documents kept in memory for the processors, 0 disables the cache
+	 */
+	public long getAsyncHandoffCacheSize() {
+		return getLong(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_CACHE_SIZE, 64L * 1024 * 1024);
+	}
+
+	/**
+	 * @return the most bytes of recently stored documents written to disk when the memory is full, 0 disables spilling
+	 */
+	public long getAsyncHandoffSpillSize() {
+		return getLong(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_SPILL_SIZE, 512L * 1024 * 1024);
+	}
+
+	/**
+	 * @return the number of seconds a recently stored document is kept for the processors
+	 */
+	public int getAsyncHandoffTtl() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_TTL, 600);
+	}
+
+	/**
+	 * @return one of NONE, DELAY or REJECT, see {@link org.openmrs.module.xdsbrepository.queue.QueueBackpressure.Policy}
+	 */
+	public String getAsyncBackpressurePolicy() {
+		return getProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_BACKPRESSURE_POLICY, "NONE");
+	}
+
+	/**
+	 * @return the number of due queue items at which submissions are held back, 0 to ignore the depth
+	 */
+	public long getAsyncHighQueueDepth() {
+		return getLong(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HIGH_QUEUE_DEPTH, 10000);
+	}
+
+	/**
+	 * @return the number of due queue items below which submissions are accepted again
+	 */
+	public long getAsyncLowQueueDepth() {
+		return getLong(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_LOW_QUEUE_DEPTH, 5000);
+	}
+
+	/**
+	 * @return the age in seconds of the oldest queued item at which submissions are held back, 0 to ignore the age
+	 */
+	public int getAsyncHighQueueAge() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HIGH_QUEUE_AGE, 3600);
+	}
+
+	/**
+	 * @return the age in seconds of the oldest queued item below which submissions are accepted again
+	 */
+	public int getAsyncLowQueueAge() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_LOW_QUEUE_AGE, 900);
+	}
+
+	/**
+	 * @return the longest time in milliseconds a submission is delayed before it is rejected
+	 */
+	public int getAsyncBackpressureMaxDelay() {
+		return getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_BACKPRESSURE_MAX_DELAY, 10000);
+	}
+
+	/**
+	 * @return the number of hours the responses to submissions are kept to answer retries, 0 to not keep them
+	 */
+	public int getReplayRetentionHours() {
+		return getInt(XDSbServiceConstants.REPLAY_RETENTION_HOURS_GP, 24);
+	}
+
+	public boolean isAuditAsync() {
+		return getBoolean(XDSbServiceConstants.AUDIT_ASYNC_GP, true);
+	}
+
+	public int getAuditQueueCapacity() {
+		return getInt(XDSbServiceConstants.AUDIT_QUEUE_CAPACITY_GP, 1000);
+	}
+
+	public int getAuditBatchSize() {
+		return getInt(XDSbServiceConstants.AUDIT_BATCH_SIZE_GP, 50);
+	}
+
+	/**
+	 * @return one of BLOCK, DROP or SPILL, see {@link org.openmrs.module.xdsbrepository.audit.AuditDispatcher.OverflowPolicy}
+	 */
+	public String getAuditOverflowPolicy() {
+		return getProperty(XDSbServiceConstants.AUDIT_OVERFLOW_POLICY_GP, "SPILL");
+	}
+
+	/**
+	 * @return the most Provide and Register requests processed at once, 0 for no limit
+	 */
+	public int getAdmissionSubmitMaxConcurrent() {
+		return getInt(XDSbServiceConstants.ADMISSION_SUBMIT_MAX_CONCURRENT_GP, 8);
+	}
+
+	/**
+	 * @return the most Provide and Register requests waiting to be processed, more are rejected
+	 */
+	public int getAdmissionSubmitMaxWaiting() {
+		return getInt(XDSbServiceConstants.ADMISSION_SUBMIT_MAX_WAITING_GP, 16);
+	}
+
+	/**
+	 * @return the most Retrieve requests processed at once, 0 for no limit
+	 */
+	public int getAdmissionRetrieveMaxConcurrent() {
+		return getInt(XDSbServiceConstants.ADMISSION_RETRIEVE_MAX_CONCURRENT_GP, 32);
+	}
+
+	/**
+	 * @return the most Retrieve requests waiting to be processed, more are rejected
+	 */
+	public int getAdmissionRetrieveMaxWaiting() {
+		return getInt(XDSbServiceConstants.ADMISSION_RETRIEVE_MAX_WAITING_GP, 64);
+	}
+
+	/**
+	 * @return the longest time in milliseconds a request waits to be processed before it is rejected
+	 */
+	public int getAdmissionMaxWait() {
+		return getInt(XDSbServiceConstants.ADMISSION_MAX_WAIT_GP, 5000);
+	}
+
+	/**
+	 * @return the rate sources without a limit of their own may submit at
+	 */
+	public RateLimit getRateLimitDefault() {
+		return rateLimitDefault;
+	}
+
+	private static RateLimit parseRateLimitDefault(String value) {
+		if (value == null) {
+			return RateLimit.UNLIMITED;
+		}
+		try {
+			return RateLimit.parse(value);
+		} catch (NumberFormatException e) {
+			log.warn("Ignoring default rate limit '" + value + "', expected rate or rate/burst");
+			return RateLimit.UNLIMITED;
+		}
+	}
+
+	/**
+	 * @return the rate limits by submission set source id
+	 */
+	public Map<String, RateLimit> getRateLimitSources() {
+		return rateLimitSources;
+	}
+
+	/**
+	 * Parses the rate limits of particular sources, written as sourceId=rate/burst;sourceId=rate;...
+	 * Invalid limits are skipped.
+	 */
+	private static Map<String, RateLimit> parseRateLimitSources(String value) {
+		Map<String, RateLimit> limits = new HashMap<String, RateLimit>();
+		if (value == null) {
+			return limits;
+		}
+
+		for (String source : value.split(";")) {
+			if (source.trim().length() == 0) {
+				continue;
+			}
+			int equals = source.lastIndexOf('=');
+			if (equals <= 0) {
+				log.warn("Ignoring rate limit '" + source + "', expected sourceId=rate/burst");
+				continue;
+			}
+			try {
+				limits.put(source.substring(0, equals).trim(), RateLimit.parse(source.substring(equals + 1)));
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring rate limit '" + source + "', expected sourceId=rate/burst");
+			}
+		}
+		return limits;
+	}
+
+	public String getLocationLookupAttributeTypeUuid() {
+		return getProperty(XDSbServiceConstants.XDS_REPOSITORY_LOCATION_LOOKUP_ATTRIBUTE_TYPE,
+				DEFAULT_LOCATION_LOOKUP_ATTRIBUTE_TYPE_UUID);
+	}
+
+}
@@ -1,9 +1,18 @@
 package org.openmrs.module.xdsbrepository.db;
 
+import org.openmrs.EncounterRole;
+import org.openmrs.Provider;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.xdsbrepository.model.QueueDailyStat;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.model.SubmissionReplay;
+import org.openmrs.module.xdsbrepository.queue.QueueRoute;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
 @Transactional
 public interface XDSbDAO {
 	
@@ -13,7 +22,75 @@ public interface XDSbDAO {
 
 	QueueItem queueDiscreteDataProcessing(QueueItem qi);
 
+	QueueItem getActiveQueueItem(String docUniqueId);
+
+	int coalesceQueueItem(QueueItem qi, QueueItem.Status status, Date now);
+
 	QueueItem dequeueNextDiscreteDataForProcessing();
 
+	List<Integer> getNextQueuedItemIds(Date now, int maxResults);
+
+	List<Integer> getNextQueuedItemIds(Date now, QueueItem.Priority priority, int maxResults);
+
+	List<Integer> getNextQueuedItemIds(Date now, QueueItem.Priority priority, QueueRoute route, int maxResults);
+
+	QueueItem getQueueItem(Integer id);
+
+	QueueItem claimQueueItem(Integer id, String owner, Date leaseUntil, Date now);
+
+	boolean extendQueueItemLease(Integer id, String owner, Date leaseUntil);
+
+	int requeueExpiredQueueItems(Date now);
+
+	int deadLetterExpiredQueueItems(Date now, int maxAttempts);
+
+	List<Integer> getRevivableDeadQueueItemIds(int maxResults);
+
+	int reviveDeadQueueItems(List<Integer> ids, Date now);
+
+	QueueItem failQueueItem(Integer id, String owner, String errorMessage, int maxAttempts, Date nextAttemptAt, Date now);
+
+	int completeQueueItems(List<Integer> ids, String owner, Date now);
+
+	int releaseQueueItems(List<Integer> ids, String owner, Date now);
+
+	long getQueueDepth(Date now);
+
+	Date getOldestDueQueueItemDate(Date now, QueueItem.Priority priority);
+
+	SubmissionReplay getSubmissionReplay(String submissionSetUniqueId);
+
+	boolean insertSubmissionReplay(String submissionSetUniqueId, String payloadDigest, Date now);
+
+	boolean takeOverSubmissionReplay(String submissionSetUniqueId, Date dateCreated, String payloadDigest, Date now);
+
+	int completeSubmissionReplay(String submissionSetUniqueId, String response, Date now);
+
+	int deletePendingSubmissionReplay(String submissionSetUniqueId);
+
+	int deleteSubmissionReplays(Date createdBefore);
+
+	boolean keyLockExists(String lockKey);
+
+	void insertKeyLock(String lockKey, Date now);
+
+	boolean lockKey(String lockKey, Date now);
+
+	int deleteKeyLocks(Date lockedBefore);
+
 	QueueItem updateQueueItem(QueueItem qi);
+
+	List<Provider> getProviders(Collection<Integer> ids);
+
+	List<EncounterRole> getEncounterRoles(Collection<Integer> ids);
+
+	List<Object[]> getFinishedQueueItems(Date finishedBefore, int maxResults);
+
+	int deleteQueueItems(List<Integer> ids);
+
+	QueueDailyStat getQueueDailyStat(Date statDate, QueueItem.Status status, QueueItem.Priority priority);
+
+	QueueDailyStat saveQueueDailyStat(QueueDailyStat stat);
+
+	List<QueueDailyStat> getQueueDailyStats(Date fromDate, Date toDate);
 }
@@ -1,13 +1,22 @@
 package org.openmrs.module.xdsbrepository.db.hibernate;
 
 import org.hibernate.Query;
+import org.hibernate.exception.ConstraintViolationException;
+import org.openmrs.EncounterRole;
+import org.openmrs.Provider;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.xdsbrepository.db.XDSbDAO;
 import org.openmrs.module.xdsbrepository.model.DocHandlerMapping;
+import org.openmrs.module.xdsbrepository.model.QueueDailyStat;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.model.SubmissionReplay;
+import org.openmrs.module.xdsbrepository.queue.QueueRoute;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 
@@ -42,16 +51,421 @@ public class HibernateXDSbDAO implements XDSbDAO {
 		return qi;
 	}
 
+	@Override
+	public QueueItem getActiveQueueItem(String docUniqueId) {
+		Query query = sessionFactory.getCurrentSession().createQuery("from QueueItem where activeDocId = :docUniqueId");
+		QueueItem qi = (QueueItem) query.setString("docUniqueId", docUniqueId).uniqueResult();
+		if (qi != null) {
+			// the item may have been changed by a bulk update since it was loaded
+			sessionFactory.getCurrentSession().refresh(qi);
+		}
+		return qi;
+	}
+
+	@Override
+	public int coalesceQueueItem(QueueItem qi, QueueItem.Status status, Date now) {
+		// the document's active item takes on the latest submission's details. An item that is already
+		// being processed is flagged so that it is queued again once the current attempt completes.
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set patient = :patient, roleProviderMap = :roleProviderMap, typeCode = :typeCode, "
+						+ "formatCode = :formatCode, dateUpdated = :now"
+						+ (qi.getEncounterType() != null ? ", encounterType = :encounterType" : "")
+						+ (qi.getPriority() == QueueItem.Priority.LIVE ? ", priority = :live" : "")
+						+ (status == QueueItem.Status.PROCESSING ? ", requeueRequested = true" : "")
+						+ " where activeDocId = :docUniqueId and status = :status");
+		query.setParameter("patient", qi.getPatient());
+		query.setString("roleProviderMap", qi.getRoleProviderMap());
+		query.setString("typeCode", qi.getTypeCode());
+		query.setString("formatCode", qi.getFormatCode());
+		query.setTimestamp("now", now);
+		if (qi.getEncounterType() != null) {
+			query.setParameter("encounterType", qi.getEncounterType());
+		}
+		if (qi.getPriority() == QueueItem.Priority.LIVE) {
+			query.setParameter("live", QueueItem.Priority.LIVE);
+		}
+		query.setString("docUniqueId", qi.getDocUniqueId());
+		query.setParameter("status", status);
+		return query.executeUpdate();
+	}
+
 	@Override
 	public QueueItem dequeueNextDiscreteDataForProcessing() {
-		Query query = sessionFactory.getCurrentSession().createQuery("from QueueItem where status='QUEUED' order by date_added");
-		List list = query.list();
-		if (list.size() < 1) {
+		// return the oldest queue item (FIFO queue)
+		List<Integer> ids = getNextQueuedItemIds(new Date(), 1);
+		if (ids.isEmpty()) {
+			return null;
+		}
+		return getQueueItem(ids.get(0));
+	}
+
+	@Override
+	public List<Integer> getNextQueuedItemIds(Date now, int maxResults) {
+		return getNextQueuedItemIds(now, null, maxResults);
+	}
+
+	@Override
+	public List<Integer> getNextQueuedItemIds(Date now, QueueItem.Priority priority, int maxResults) {
+		return getNextQueuedItemIds(now, priority, null, maxResults);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Integer> getNextQueuedItemIds(Date now, QueueItem.Priority priority, QueueRoute route, int maxResults) {
+		// only select the ids so that a large backlog isn't loaded, this is served by the (status, next_attempt_at)
+		// index. New items are due when they are added, so retries waiting out their backoff don't hold them up.
+		//
+		// Each patient is a lane: only the patient's earliest queued item is a candidate and only while none of
+		// the patient's items are being processed. An item can therefore only be claimed once every earlier item
+		// for the patient has finished, so one patient's documents are processed in order by one worker at a
+		// time while different patients are processed in parallel. The (patient_id, status) index serves the
+		// subqueries. The lanes are shared by both priority classes and all routes so that a patient's documents
+		// stay in order.
+		boolean routed = route != null && !route.getCodes().isEmpty();
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"select qi.id from QueueItem qi where qi.status = :queued and qi.nextAttemptAt <= :now "
+						+ (priority != null ? "and qi.priority = :priority " : "")
+						+ (routed && !route.isExcluding() ? "and (qi.typeCode in (:codes) or qi.formatCode in (:codes)) " : "")
+						+ (routed && route.isExcluding() ? "and (qi.typeCode is null or qi.typeCode not in (:codes)) "
+								+ "and (qi.formatCode is null or qi.formatCode not in (:codes)) " : "")
+						+ "and not exists (select p.id from QueueItem p where p.patient = qi.patient and p.status = :processing) "
+						+ "and not exists (select e.id from QueueItem e where e.patient = qi.patient and e.status = :queued and e.id < qi.id) "
+						+ "order by qi.nextAttemptAt, qi.id");
+		query.setParameter("queued", QueueItem.Status.QUEUED);
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setTimestamp("now", now);
+		if (priority != null) {
+			query.setParameter("priority", priority);
+		}
+		if (routed) {
+			query.setParameterList("codes", route.getCodes());
+		}
+		query.setMaxResults(maxResults);
+		return query.list();
+	}
+
+	@Override
+	public QueueItem getQueueItem(Integer id) {
+		return (QueueItem) sessionFactory.getCurrentSession().get(QueueItem.class, id);
+	}
+
+	@Override
+	public QueueItem claimQueueItem(Integer id, String owner, Date leaseUntil, Date now) {
+		// the status condition makes the claim atomic, if another worker (on any node) got there
+		// first no row is updated. The candidate ids may be out of date, an item that has failed and
+		// was queued again since isn't claimed before its backoff has passed.
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :processing, owner = :owner, leaseUntil = :leaseUntil, dateUpdated = :now, "
+						+ "attempts = attempts + 1 where id = :id and status = :queued and nextAttemptAt <= :now");
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setParameter("queued", QueueItem.Status.QUEUED);
+		query.setString("owner", owner);
+		query.setTimestamp("leaseUntil", leaseUntil);
+		query.setTimestamp("now", now);
+		query.setInteger("id", id);
+		if (query.executeUpdate() != 1) {
+			return null;
+		}
+
+		QueueItem qi = getQueueItem(id);
+		// the bulk update bypasses the session, make sure an already loaded instance reflects it
+		sessionFactory.getCurrentSession().refresh(qi);
+		return qi;
+	}
+
+	@Override
+	public boolean extendQueueItemLease(Integer id, String owner, Date leaseUntil) {
+		// the lease can only be extended while it is held, an item that was requeued after its lease
+		// expired (and possibly claimed by another worker) is left alone
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set leaseUntil = :leaseUntil, dateUpdated = :now "
+						+ "where id = :id and status = :processing and owner = :owner");
+		query.setTimestamp("leaseUntil", leaseUntil);
+		query.setTimestamp("now", now);
+		query.setInteger("id", id);
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setString("owner", owner);
+		return query.executeUpdate() == 1;
+	}
+
+	@Override
+	public int requeueExpiredQueueItems(Date now) {
+		// items without a lease were claimed before leases were introduced and can't still be running
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :queued, owner = null, leaseUntil = null, dateUpdated = :now "
+						+ "where status = :processing and (leaseUntil < :now or leaseUntil is null)");
+		query.setParameter("queued", QueueItem.Status.QUEUED);
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setTimestamp("now", now);
+		return query.executeUpdate();
+	}
+
+	@Override
+	public int deadLetterExpiredQueueItems(Date now, int maxAttempts) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :dead, owner = null, leaseUntil = null, activeDocId = null, "
+						+ "requeueRequested = false, dateUpdated = :now, errorMessage = :errorMessage "
+						+ "where status = :processing and (leaseUntil < :now or leaseUntil is null) and attempts >= :maxAttempts");
+		query.setParameter("dead", QueueItem.Status.DEAD);
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setTimestamp("now", now);
+		query.setString("errorMessage", "The processing lease expired on the last attempt");
+		query.setInteger("maxAttempts", maxAttempts);
+		return query.executeUpdate();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Integer> getRevivableDeadQueueItemIds(int maxResults) {
+		// only the latest dead item of a document, and only if the document has not been queued again since.
+		// Selected separately from the update as MySQL can't update a table that its subqueries read.
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"select qi.id from QueueItem qi where qi.status = :dead "
+						+ "and not exists (select a.id from QueueItem a where a.activeDocId = qi.docUniqueId) "
+						+ "and not exists (select d.id from QueueItem d where d.docUniqueId = qi.docUniqueId "
+						+ "and d.status = :dead and d.id > qi.id) order by qi.id");
+		query.setParameter("dead", QueueItem.Status.DEAD);
+		query.setMaxResults(maxResults);
+		return query.list();
+	}
+
+	@Override
+	public int reviveDeadQueueItems(List<Integer> ids, Date now) {
+		// queued as if they were new, so that they don't count as old for the backpressure and are
+		// claimed after the items that were waiting already
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :queued, activeDocId = docUniqueId, attempts = 0, owner = null, "
+						+ "leaseUntil = null, dateAdded = :now, nextAttemptAt = :now, dateUpdated = :now "
+						+ "where id in (:ids) and status = :dead");
+		query.setParameter("queued", QueueItem.Status.QUEUED);
+		query.setParameter("dead", QueueItem.Status.DEAD);
+		query.setTimestamp("now", now);
+		query.setParameterList("ids", ids);
+		return query.executeUpdate();
+	}
+
+	@Override
+	public QueueItem failQueueItem(Integer id, String owner, String errorMessage, int maxAttempts, Date nextAttemptAt, Date now) {
+		// the owner condition makes sure a worker whose lease expired can't overwrite the item once
+		// it has been claimed by another worker, only one of the three updates matches the row
+		String set = "errorMessage = :errorMessage, owner = null, leaseUntil = null, dateUpdated = :now";
+		String owned = "id = :id and status = :processing and owner = :owner";
+
+		// the document has been submitted again, the new submission gets a fresh set of attempts
+		Query requeue = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :queued, requeueRequested = false, attempts = 0, nextAttemptAt = :now, "
+						+ set + " where " + owned + " and requeueRequested = true");
+		requeue.setParameter("queued", QueueItem.Status.QUEUED);
+
+		Query dead = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :dead, activeDocId = null, " + set
+						+ " where " + owned + " and requeueRequested = false and attempts >= :maxAttempts");
+		dead.setParameter("dead", QueueItem.Status.DEAD);
+		dead.setInteger("maxAttempts", maxAttempts);
+
+		Query retry = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :queued, nextAttemptAt = :nextAttemptAt, " + set
+						+ " where " + owned + " and requeueRequested = false and attempts < :maxAttempts");
+		retry.setParameter("queued", QueueItem.Status.QUEUED);
+		retry.setTimestamp("nextAttemptAt", nextAttemptAt);
+		retry.setInteger("maxAttempts", maxAttempts);
+
+		int updated = 0;
+		for (Query query : Arrays.asList(requeue, dead, retry)) {
+			query.setString("errorMessage", errorMessage);
+			query.setTimestamp("now", now);
+			query.setInteger("id", id);
+			query.setParameter("processing", QueueItem.Status.PROCESSING);
+			query.setString("owner", owner);
+			updated += query.executeUpdate();
+		}
+		if (updated == 0) {
 			return null;
-		} else {
-			// return the oldest queue item (FIFO queue)
-			return (QueueItem) list.get(0);
 		}
+
+		QueueItem qi = getQueueItem(id);
+		sessionFactory.getCurrentSession().refresh(qi);
+		return qi;
+	}
+
+	@Override
+	public int completeQueueItems(List<Integer> ids, String owner, Date now) {
+		// items whose document was queued again while they were being processed go back on the queue
+		// so that the latest submission is processed, with a fresh set of attempts
+		Query requeue = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :queued, owner = null, leaseUntil = null, attempts = 0, "
+						+ "requeueRequested = false, nextAttemptAt = :now, dateUpdated = :now "
+						+ "where id in (:ids) and status = :processing and owner = :owner and requeueRequested = true");
+		requeue.setParameter("queued", QueueItem.Status.QUEUED);
+		requeue.setParameter("processing", QueueItem.Status.PROCESSING);
+		requeue.setString("owner", owner);
+		requeue.setTimestamp("now", now);
+		requeue.setParameterList("ids", ids);
+		int updated = requeue.executeUpdate();
+
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :successful, leaseUntil = null, activeDocId = null, dateUpdated = :now "
+						+ "where id in (:ids) and status = :processing and owner = :owner");
+		query.setParameter("successful", QueueItem.Status.SUCCESSFUL);
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setString("owner", owner);
+		query.setTimestamp("now", now);
+		query.setParameterList("ids", ids);
+		return updated + query.executeUpdate();
+	}
+
+	@Override
+	public int releaseQueueItems(List<Integer> ids, String owner, Date now) {
+		// the item keeps its place in the queue and the claim doesn't count as an attempt
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update QueueItem set status = :queued, owner = null, leaseUntil = null, attempts = attempts - 1, "
+						+ "dateUpdated = :now where id in (:ids) and status = :processing and owner = :owner");
+		query.setParameter("queued", QueueItem.Status.QUEUED);
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setString("owner", owner);
+		query.setTimestamp("now", now);
+		query.setParameterList("ids", ids);
+		return query.executeUpdate();
+	}
+
+	@Override
+	public long getQueueDepth(Date now) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"select count(id) from QueueItem where status = :queued and nextAttemptAt <= :now");
+		query.setParameter("queued", QueueItem.Status.QUEUED);
+		query.setTimestamp("now", now);
+		return ((Number) query.uniqueResult()).longValue();
+	}
+
+	@Override
+	public Date getOldestDueQueueItemDate(Date now, QueueItem.Priority priority) {
+		// only the items that could be claimed now, the same way as getNextQueuedItemIds: items waiting out
+		// their backoff and items behind an earlier item of their patient aren't held up by the processors
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"select min(qi.nextAttemptAt) from QueueItem qi where qi.status = :queued and qi.nextAttemptAt <= :now "
+						+ "and qi.priority = :priority "
+						+ "and not exists (select p.id from QueueItem p where p.patient = qi.patient and p.status = :processing) "
+						+ "and not exists (select e.id from QueueItem e where e.patient = qi.patient and e.status = :queued and e.id < qi.id)");
+		query.setParameter("queued", QueueItem.Status.QUEUED);
+		query.setParameter("processing", QueueItem.Status.PROCESSING);
+		query.setParameter("priority", priority);
+		query.setTimestamp("now", now);
+		return (Date) query.uniqueResult();
+	}
+
+	@Override
+	public SubmissionReplay getSubmissionReplay(String submissionSetUniqueId) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"from SubmissionReplay where submissionSetUniqueId = :uniqueId");
+		query.setString("uniqueId", submissionSetUniqueId);
+		return (SubmissionReplay) query.uniqueResult();
+	}
+
+	@Override
+	public boolean insertSubmissionReplay(String submissionSetUniqueId, String payloadDigest, Date now) {
+		// inserted without the session, so that a duplicate leaves nothing in it to flush
+		Query query = sessionFactory.getCurrentSession().createSQLQuery(
+				"insert into xdsbrepository_submission_replay (submission_set_unique_id, payload_digest, date_created) "
+						+ "values (:uniqueId, :digest, :now)");
+		query.setString("uniqueId", submissionSetUniqueId);
+		query.setString("digest", payloadDigest);
+		query.setTimestamp("now", now);
+		try {
+			return query.executeUpdate() > 0;
+		} catch (ConstraintViolationException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean takeOverSubmissionReplay(String submissionSetUniqueId, Date dateCreated, String payloadDigest, Date now) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update SubmissionReplay set payloadDigest = :digest, response = null, dateCreated = :now "
+						+ "where submissionSetUniqueId = :uniqueId and dateCreated = :dateCreated");
+		query.setString("digest", payloadDigest);
+		query.setTimestamp("now", now);
+		query.setString("uniqueId", submissionSetUniqueId);
+		query.setTimestamp("dateCreated", dateCreated);
+		return query.executeUpdate() > 0;
+	}
+
+	@Override
+	public int completeSubmissionReplay(String submissionSetUniqueId, String response, Date now) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update SubmissionReplay set response = :response, dateCreated = :now "
+						+ "where submissionSetUniqueId = :uniqueId and response is null");
+		query.setParameter("response", response);
+		query.setTimestamp("now", now);
+		query.setString("uniqueId", submissionSetUniqueId);
+		return query.executeUpdate();
+	}
+
+	@Override
+	public int deletePendingSubmissionReplay(String submissionSetUniqueId) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"delete from SubmissionReplay where submissionSetUniqueId = :uniqueId and response is null");
+		query.setString("uniqueId", submissionSetUniqueId);
+		return query.executeUpdate();
+	}
+
+	@Override
+	public int deleteSubmissionReplays(Date createdBefore) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"delete from SubmissionReplay where dateCreated < :before");
+		query.setTimestamp("before", createdBefore);
+		return query.executeUpdate();
+	}
+
+	@Override
+	public boolean keyLockExists(String lockKey) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"select count(*) from KeyLock where lockKey = :lockKey");
+		query.setString("lockKey", lockKey);
+		return ((Number) query.uniqueResult()).longValue() > 0;
+	}
+
+	@Override
+	public void insertKeyLock(String lockKey, Date now) {
+		Query query = sessionFactory.getCurrentSession().createSQLQuery(
+				"insert into xdsbrepository_key_lock (lock_key, date_created) values (:lockKey, :now)");
+		query.setString("lockKey", lockKey);
+		query.setTimestamp("now", now);
+		query.executeUpdate();
+	}
+
+	@Override
+	public boolean lockKey(String lockKey, Date now) {
+		// the update waits for the transaction that holds the row and doesn't read a snapshot, so rows
+		// committed by that transaction are visible to this one's later reads
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"update KeyLock set dateCreated = :now where lockKey = :lockKey");
+		query.setString("lockKey", lockKey);
+		query.setTimestamp("now", now);
+		return query.executeUpdate() > 0;
+	}
+
+	@Override
+	public int deleteKeyLocks(Date lockedBefore) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"delete from KeyLock where dateCreated < :before");
+		query.setTimestamp("before", lockedBefore);
+		return query.executeUpdate();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Provider> getProviders(Collection<Integer> ids) {
+		Query query = sessionFactory.getCurrentSession().createQuery("from Provider where providerId in (:ids)");
+		query.setParameterList("ids", ids);
+		return query.list();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<EncounterRole> getEncounterRoles(Collection<Integer> ids) {
+		Query query = sessionFactory.getCurrentSession().createQuery("from EncounterRole where encounterRoleId in (:ids)");
+		query.setParameterList("ids", ids);
+		return query.list();
 	}
 
 	@Override
@@ -60,6 +474,62 @@ public class HibernateXDSbDAO implements XDSbDAO {
 		return qi;
 	}
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Object[]> getFinishedQueueItems(Date finishedBefore, int maxResults) {
+		// only what the daily counts need, served by the (status, date_updated) index. Items finished
+		// before date_updated was set fall back to when they were added.
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"select id, dateUpdated, dateAdded, status, priority, attempts from QueueItem "
+						+ "where status in (:finished) "
+						+ "and (dateUpdated < :before or (dateUpdated is null and dateAdded < :before)) order by id");
+		query.setParameterList("finished", Arrays.asList(QueueItem.Status.SUCCESSFUL, QueueItem.Status.FAILED));
+		query.setTimestamp("before", finishedBefore);
+		query.setMaxResults(maxResults);
+		return query.list();
+	}
+
+	@Override
+	public int deleteQueueItems(List<Integer> ids) {
+		// bulk deletes don't cascade to collections
+		Query providers = sessionFactory.getCurrentSession().createSQLQuery(
+				"delete from xdsbrepository_queue_provider where queue_item_id in (:ids)");
+		providers.setParameterList("ids", ids);
+		providers.executeUpdate();
+
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"delete from QueueItem where id in (:ids) and status in (:finished)");
+		query.setParameterList("ids", ids);
+		query.setParameterList("finished", Arrays.asList(QueueItem.Status.SUCCESSFUL, QueueItem.Status.FAILED));
+		return query.executeUpdate();
+	}
+
+	@Override
+	public QueueDailyStat getQueueDailyStat(Date statDate, QueueItem.Status status, QueueItem.Priority priority) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"from QueueDailyStat where statDate = :statDate and status = :status and priority = :priority");
+		query.setDate("statDate", statDate);
+		query.setParameter("status", status);
+		query.setParameter("priority", priority);
+		return (QueueDailyStat) query.uniqueResult();
+	}
+
+	@Override
+	public QueueDailyStat saveQueueDailyStat(QueueDailyStat stat) {
+		sessionFactory.getCurrentSession().saveOrUpdate(stat);
+		return stat;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<QueueDailyStat> getQueueDailyStats(Date fromDate, Date toDate) {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+				"from QueueDailyStat where statDate >= :fromDate and statDate <= :toDate order by statDate, status, priority");
+		query.setDate("fromDate", fromDate);
+		query.setDate("toDate", toDate);
+		return query.list();
+	}
+
     public DbSessionFactory getSessionFactory() {
         return sessionFactory;
     }
@@ -0,0 +1,15 @@
+package org.openmrs.module.xdsbrepository.exceptions;
+
+/**
+ * A queue item is no longer claimed by the processor that claimed it, its lease expired and it may
+ * have been claimed by another processor
+ */
+public class QueueItemLeaseLostException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	public QueueItemLeaseLostException(String msg) {
+		super(msg);
+	}
+
+}
@@ -5,53 +5,77 @@ import ca.uhn.hl7v2.model.v25.message.ORM_O01;
 import ca.uhn.hl7v2.parser.PipeParser;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.dcm4che3.audit.AuditMessages.EventTypeCode;
-import org.dcm4che3.net.audit.AuditLogger;
 import org.dcm4chee.xds2.common.XDSConstants;
-import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
-import org.dcm4chee.xds2.common.audit.XDSAudit;
 import org.dcm4chee.xds2.common.exception.XDSException;
 import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
 import org.dcm4chee.xds2.infoset.rim.*;
 import org.dcm4chee.xds2.infoset.util.DocumentRegistryPortTypeFactory;
 import org.dcm4chee.xds2.infoset.util.InfosetUtil;
 import org.dcm4chee.xds2.infoset.ws.registry.DocumentRegistryPortType;
+import org.hibernate.exception.ConstraintViolationException;
 import org.openmrs.*;
 import org.openmrs.api.*;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
-import org.openmrs.module.shr.atna.api.AtnaAuditService;
 import org.openmrs.module.shr.cdahandler.api.CdaImportService;
 import org.openmrs.module.shr.cdahandler.exception.DocumentImportException;
 import org.openmrs.module.shr.contenthandler.UnstructuredDataHandler;
 import org.openmrs.module.shr.contenthandler.api.*;
 import org.openmrs.module.xdsbrepository.Identifier;
+import org.openmrs.module.xdsbrepository.Utils;
 import org.openmrs.module.xdsbrepository.XDSbService;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.audit.AuditDispatcher;
+import org.openmrs.module.xdsbrepository.audit.RegistryExportAuditEvent;
+import org.openmrs.module.xdsbrepository.audit.RepositoryImportAuditEvent;
+import org.openmrs.module.xdsbrepository.cache.ContentHandoffCache;
+import org.openmrs.module.xdsbrepository.cache.MetadataCache;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
 import org.openmrs.module.xdsbrepository.db.XDSbDAO;
 import org.openmrs.module.xdsbrepository.exceptions.CXParseException;
 import org.openmrs.module.xdsbrepository.exceptions.UnsupportedGenderException;
 import org.openmrs.module.xdsbrepository.mapper.PatientIdentifierMapper;
+import org.openmrs.module.xdsbrepository.model.QueueDailyStat;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.model.QueueItemProvider;
+import org.openmrs.module.xdsbrepository.model.SubmissionReplay;
+import org.openmrs.module.xdsbrepository.queue.QueueRoute;
+import org.openmrs.module.xdsbrepository.queue.QueueSignal;
+import org.openmrs.module.xdsbrepository.ratelimit.SourceRateLimiter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.CollectionUtils;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.stream.StreamSource;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.MessageDigest;
@@ -59,6 +83,7 @@ import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Date;
 import java.util.Map;
 
@@ -86,12 +111,63 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 
 	private static final String FORM_VERSION = "1";
 
+	// identifies this node in the owner of claimed queue items
+	private static final String NODE_ID = ManagementFactory.getRuntimeMXBean().getName();
+
+	private static final int CLAIM_CANDIDATE_FACTOR = 2;
+
+	private static final int MAX_ERROR_MESSAGE_LENGTH = 1024;
+
+	// the submission set slot that callers may use to set the queue priority of their documents
+	public static final String SLOT_NAME_QUEUE_PRIORITY = "urn:openmrs:xds-b-repository:queuePriority";
+
+	// counts claim slots for the weighted fair selection between priority classes
+	private static final AtomicLong claimRound = new AtomicLong();
+
+	private static final QName REGISTRY_RESPONSE_QNAME = new QName("urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0", "RegistryResponse");
+
+	// expensive to create and thread safe, so shared by all submissions
+	private static volatile JAXBContext registryResponseContext;
+
+	// a submission set claimed this long ago by a submission that hasn't completed is taken over
+	private static final int PENDING_REPLAY_TIMEOUT_MINUTES = 10;
+
+	private static final int REQUEUE_BATCH_SIZE = 500;
+
 	private XDSbDAO dao;
 
 	@Autowired
 	@Qualifier("xdsbrepository.identifierMapper")
 	private PatientIdentifierMapper identifierMapper;
 
+	@Autowired
+	@Qualifier("xdsbrepository.metadataCache")
+	private MetadataCache metadataCache;
+
+	@Autowired
+	@Qualifier("transactionManager")
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	@Qualifier("xdsbrepository.contentHandoffCache")
+	private ContentHandoffCache contentHandoffCache;
+
+	@Autowired
+	@Qualifier("xdsbrepository.sourceRateLimiter")
+	private SourceRateLimiter sourceRateLimiter;
+
+	@Autowired
+	@Qualifier("xdsbrepository.configurationManager")
+	private ConfigurationManager configurationManager;
+
+	@Autowired
+	@Qualifier("xdsbrepository.auditDispatcher")
+	private AuditDispatcher auditDispatcher;
+
+	@Autowired
+	@Qualifier("xdsbrepository.queueSignal")
+	private QueueSignal queueSignal;
+
 	final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
 	public static String bytesToHex(byte[] bytes) {
@@ -110,10 +186,7 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	 * @throws MalformedURLException
 	 */
 	private URL getRegistryUrl() throws MalformedURLException {
-		AdministrationService as = Context.getAdministrationService();
-		String url = as.getGlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP);
-
-		return new URL(url);
+		return new URL(getConfiguration().getRegistryUrl());
 	}
 
 	@Transactional(readOnly = false, rollbackFor = XDSException.class)
@@ -161,7 +234,13 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 
-	@Transactional(readOnly = false, rollbackFor = {XDSException.class, ContentHandlerException.class} )
+	/**
+	 * Runs the steps before the documents are stored in short transactions of their own, and stores
+	 * the registered documents in one transaction that starts by locking the keys of the rows it
+	 * creates. Nothing is held open while the registry is called. When this is called in a
+	 * transaction that was started further up, e.g. by a test, all of it joins that transaction.
+	 */
+	@Transactional(propagation = Propagation.SUPPORTS)
 	@Override
 	public RegistryResponseType provideAndRegisterDocumentSetB(ProvideAndRegisterDocumentSetRequestType request) throws XDSException, ContentHandlerException {
 		boolean wasSuccess = false;
@@ -170,16 +249,44 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		RegistryPackageType submissionSet = InfosetUtil.getRegistryPackage(request.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
 		String submissionSetUID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, submissionSet),
 				patID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, submissionSet);
-		AuditRequestInfo info = new AuditRequestInfo(null, null);
 
 		RegistryResponseType response = new RegistryResponseType();
+		SubmissionReplay claim = null;
+		boolean claimCompleted = false;
 
 		try {
+			int replayRetentionHours = getConfiguration().getReplayRetentionHours();
+			String payloadDigest = null;
+			if (replayRetentionHours > 0 && submissionSetUID != null) {
+				// a retry of a processed submission costs a read, so it isn't charged to the source's rate limit
+				payloadDigest = getPayloadDigest(request);
+				SubmissionReplay replay = getCompletedSubmissionReplay(submissionSetUID, payloadDigest, replayRetentionHours);
+				if (replay != null) {
+					log.info("Submission set " + submissionSetUID + " was already processed, answering with its original response");
+					wasSuccess = true;
+					return getReplayedResponse(replay);
+				}
+			}
 
-			List<ExtrinsicObjectType> extrinsicObjects = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest());
+			// no transaction has been started yet, a throttled submission doesn't hold a connection
+			String sourceId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_sourceId, submissionSet);
+			if (!getSourceRateLimiter().tryAcquire(sourceId)) {
+				throw new XDSException(XDSbServiceConstants.ERROR_XDS_REPOSITORY_BUSY,
+						"Source " + sourceId + " is submitting faster than its rate limit allows, please try again later", null);
+			}
 
-			SubmitObjectsRequest submitObjectRequest = request.getSubmitObjectsRequest();
-			XDSbService xdsService = Context.getService(XDSbService.class);
+			if (payloadDigest != null) {
+				SubmissionReplay replay = claimSubmissionReplay(submissionSetUID, payloadDigest, replayRetentionHours);
+				if (replay != null && replay.getResponse() != null) {
+					// completed by the original in the meantime
+					log.info("Submission set " + submissionSetUID + " was already processed, answering with its original response");
+					wasSuccess = true;
+					return getReplayedResponse(replay);
+				}
+				claim = replay;
+			}
+
+			List<ExtrinsicObjectType> extrinsicObjects = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest());
 
 			validateDocumentMatchMetadata(extrinsicObjects, InfosetUtil.getDocuments(request));
 
@@ -188,36 +295,447 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 				contentHandlers.put(this.processDocumentMetaData(eot, request), UnstructuredDataHandler.class);
 			}
 
-			response = xdsService.registerDocuments(contentHandlers, submitObjectRequest);
+			response = sendMetadataToRegistry(getRegistryUrl(), request.getSubmitObjectsRequest());
 
 			// Save each document
 			if (response.getStatus().equals(XDSConstants.XDS_B_STATUS_SUCCESS)) {
-				for (ExtrinsicObjectType eot : extrinsicObjects) {
-					this.storeDocument(eot, request);
-				}
+				storeDocuments(request, extrinsicObjects, contentHandlers, claim != null ? submissionSetUID : null, response);
+				claimCompleted = true;
 			}
 
 			wasSuccess = true;
 
-		} catch (UnsupportedGenderException ex) {
+		} catch (MalformedURLException ex) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
 		} catch (JAXBException ex) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
 		} catch (RuntimeException ex) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
-		} catch (ParseException ex) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
-		} catch (DocumentImportException ex) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
-		} catch (XPathExpressionException ex) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
 		} finally {
-			XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
-			XDSAudit.logRepositoryImport(submissionSetUID, patID, info, wasSuccess);
+			if (claim != null && !claimCompleted) {
+				// so that the submission can be retried straight away
+				releaseSubmissionReplay(submissionSetUID);
+			}
+			getAuditDispatcher().dispatch(new RepositoryImportAuditEvent(submissionSetUID, patID, wasSuccess));
 		}
 		return response;
 	}
 
+	/**
+	 * Stores the registered documents and completes the claim on their submission set in one
+	 * transaction. The rows for the keys that it locks are created beforehand in transactions of
+	 * their own, so that the lock is taken by an update that waits for whoever holds it. As those
+	 * updates are the transaction's first statements, its reads see the rows committed by the
+	 * submissions it waited for.
+	 *
+	 * @param claimedSubmissionSetUID the submission set to complete the claim on, or null if it
+	 * wasn't claimed
+	 */
+	protected void storeDocuments(final ProvideAndRegisterDocumentSetRequestType request, final List<ExtrinsicObjectType> extrinsicObjects,
+			final Map<String, Class<? extends ContentHandler>> contentHandlers, final String claimedSubmissionSetUID,
+			final RegistryResponseType response) throws XDSException, ContentHandlerException {
+		final SortedSet<String> keys = getMissingNaturalKeys(extrinsicObjects);
+		createKeyLocks(keys);
+
+		TransactionTemplate template = new TransactionTemplate(getTransactionManager());
+		Exception failure = template.execute(new TransactionCallback<Exception>() {
+			@Override
+			public Exception doInTransaction(TransactionStatus status) {
+				try {
+					if (status.isNewTransaction()) {
+						// entities loaded before the transaction started are read again in it
+						Context.clearSession();
+					}
+					lockNaturalKeys(keys);
+
+					for (Map.Entry<String, Class<? extends ContentHandler>> entry : contentHandlers.entrySet()) {
+						dao.registerDocument(entry.getKey(), entry.getValue());
+					}
+					for (ExtrinsicObjectType eot : extrinsicObjects) {
+						storeDocument(eot, request);
+					}
+					if (claimedSubmissionSetUID != null) {
+						saveSubmissionReplay(claimedSubmissionSetUID, response);
+					}
+					return null;
+				} catch (Exception e) {
+					status.setRollbackOnly();
+					return e;
+				}
+			}
+		});
+
+		if (failure instanceof XDSException) {
+			throw (XDSException) failure;
+		} else if (failure instanceof ContentHandlerException) {
+			throw (ContentHandlerException) failure;
+		} else if (failure != null) {
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, failure.getMessage(), failure);
+		}
+	}
+
+	/**
+	 * Works out which of the rows that storing the documents finds or creates don't exist yet, e.g.
+	 * a new patient, provider or encounter type. This is read in a transaction of its own, before the
+	 * transaction that stores the documents is started.
+	 *
+	 * @return the keys of the missing rows, sorted in the order they are to be locked
+	 */
+	protected SortedSet<String> getMissingNaturalKeys(final List<ExtrinsicObjectType> extrinsicObjects) {
+		return executeSeparately(true, new TransactionCallback<SortedSet<String>>() {
+			@Override
+			public SortedSet<String> doInTransaction(TransactionStatus status) {
+				XDSbRepositoryConfiguration configuration = getConfiguration();
+				SortedSet<String> keys = new TreeSet<String>();
+				for (ExtrinsicObjectType eot : extrinsicObjects) {
+					try {
+						addMissingNaturalKeys(eot, configuration, keys);
+					} catch (Exception e) {
+						// the document is rejected when it is stored
+						log.debug("Could not work out the rows needed by document " + eot.getId(), e);
+					}
+				}
+				return keys;
+			}
+		});
+	}
+
+	private void addMissingNaturalKeys(ExtrinsicObjectType eot, XDSbRepositoryConfiguration configuration, Set<String> keys)
+			throws XDSException, JAXBException {
+		String classCode = getClassificationFromExtrinsicObject(XDSConstants.UUID_XDSDocumentEntry_classCode, eot).getNodeRepresentation();
+		String[] docIdParts = eot.getId().split("/");
+		EncounterService es = Context.getEncounterService();
+		String encounterTypeUuid = docIdParts.length > 2 ? docIdParts[2] : "";
+		if ((encounterTypeUuid.equals("") || es.getEncounterTypeByUuid(encounterTypeUuid) == null)
+				&& es.getEncounterType(classCode) == null) {
+			keys.add("encounterType:" + classCode);
+		}
+		if (docIdParts.length >= 4 && Context.getFormService().getFormByUuid(docIdParts[3]) == null) {
+			keys.add("form:" + docIdParts[3]);
+		}
+
+		PatientService ps = Context.getPatientService();
+		Identifier id = parsePatientIdentifier(InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eot));
+		PatientIdentifierType idType = addMissingIdentifierTypeKey(id, keys);
+		if (configuration.isAutoCreatePatients() && (idType == null
+				|| ps.getPatients(null, id.getIdentifier(), Collections.singletonList(idType), true).isEmpty())) {
+			String idTypeName = idType != null ? idType.getName() : id.getAssigningAuthority().getAssigningAuthorityId();
+			keys.add("patient:" + idTypeName + "|" + id.getIdentifier());
+
+			SlotType1 patInfoSlot = InfosetUtil.getSlotsFromRegistryObject(eot).get(XDSConstants.SLOT_NAME_SOURCE_PATIENT_INFO);
+			for (String val : patInfoSlot.getValueList().getValue()) {
+				if (val.startsWith("PID-3|")) {
+					addMissingIdentifierTypeKey(parsePatientIdentifier(val.replace("PID-3|", "")), keys);
+				}
+			}
+		}
+		addMissingIdentifierTypeKey(parsePatientIdentifier(InfosetUtil.getSlotValue(eot.getSlot(), XDSConstants.SLOT_NAME_SOURCE_PATIENT_ID, null)), keys);
+
+		for (Map<String, SlotType1> slotMap : getClassificationSlotsFromExtrinsicObject(XDSConstants.UUID_XDSDocumentEntry_author, eot)) {
+			if (slotMap.containsKey(XDSConstants.SLOT_NAME_AUTHOR_PERSON)) {
+				String authorXCN = slotMap.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON).getValueList().getValue().get(0);
+				String[] xcnComponents = authorXCN.split("\\^", -1);
+				if (findProvider(xcnComponents) == null) {
+					keys.add("provider:" + (xcnComponents[0].isEmpty() ? authorXCN : xcnComponents[0]));
+				}
+			}
+			if (slotMap.containsKey(SLOT_NAME_AUTHOR_ROLE)) {
+				for (String authorRole : slotMap.get(SLOT_NAME_AUTHOR_ROLE).getValueList().getValue()) {
+					if (getEncounterRoleByName(authorRole) == null) {
+						keys.add("encounterRole:" + authorRole);
+					}
+				}
+			}
+		}
+
+		String locationCode = getLocationCodeFromSlot(getAuthorInstitutionSlot(eot));
+		if (findLocationBySiteCode(locationCode) == null) {
+			keys.add("location:" + locationCode);
+		}
+		if (eot.getContentVersionInfo() != null
+				&& Context.getLocationService().getLocationAttributeTypeByUuid(LOCATION_ATTRIBUTE_TYPE_SOFTWARE_VERSION_UUID) == null) {
+			keys.add("locationAttributeType:" + LOCATION_ATTRIBUTE_TYPE_SOFTWARE_VERSION_UUID);
+		}
+	}
+
+	private PatientIdentifierType addMissingIdentifierTypeKey(Identifier id, Set<String> keys) {
+		PatientIdentifierType idType = findIdentifierType(id, Context.getPatientService());
+		if (idType == null) {
+			keys.add("identifierType:" + id.getAssigningAuthority().getAssigningAuthorityId());
+		}
+		return idType;
+	}
+
+	/**
+	 * Creates the lock rows of the keys that don't have one yet, each in a transaction of its own. A
+	 * row that a parallel submission created first fails that transaction only, and is left to it.
+	 */
+	protected void createKeyLocks(SortedSet<String> keys) {
+		for (String key : keys) {
+			final String lockKey = getLockKey(key);
+			try {
+				executeSeparately(false, new TransactionCallback<Object>() {
+					@Override
+					public Object doInTransaction(TransactionStatus status) {
+						if (!dao.keyLockExists(lockKey)) {
+							dao.insertKeyLock(lockKey, new Date());
+						}
+						return null;
+					}
+				});
+			} catch (ConstraintViolationException e) {
+				if (TransactionSynchronizationManager.isActualTransactionActive()) {
+					// it ran in a transaction that was started further up, which it must not hide this from
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Locks the keys until the transaction completes, waiting for any submission that holds one of
+	 * them. They are locked in order so that two submissions can't each wait for the other. A wait
+	 * that takes longer than the database's lock wait timeout fails the submission.
+	 */
+	protected void lockNaturalKeys(SortedSet<String> keys) {
+		for (String key : keys) {
+			lockKey(key);
+		}
+	}
+
+	/**
+	 * Locks a key until the transaction completes. A key without a row, because it wasn't created
+	 * beforehand or was purged since, gets one in this transaction, which fails if a parallel
+	 * transaction inserts the same row.
+	 */
+	private void lockKey(String key) {
+		String lockKey = getLockKey(key);
+		Date now = new Date();
+		if (!dao.lockKey(lockKey, now)) {
+			dao.insertKeyLock(lockKey, now);
+		}
+	}
+
+	/**
+	 * @return the digest that a key is stored as, so that no patient identifiers end up in the lock
+	 * table
+	 */
+	private static String getLockKey(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return bytesToHex(digest.digest(key.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Runs the callback in a transaction of its own, so that what it reads isn't tied to the snapshot
+	 * of a longer transaction. When a transaction was started further up, e.g. by a test, the
+	 * callback joins it rather than waiting for the locks that it holds.
+	 */
+	protected <T> T executeSeparately(boolean readOnly, TransactionCallback<T> callback) {
+		TransactionTemplate template = new TransactionTemplate(getTransactionManager());
+		template.setReadOnly(readOnly);
+		return template.execute(callback);
+	}
+
+	/**
+	 * Digests the documents of a submission, so that a retry is only answered with the original
+	 * response if it carries the same documents as the original did
+	 */
+	protected String getPayloadDigest(ProvideAndRegisterDocumentSetRequestType request) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			Map<String, ProvideAndRegisterDocumentSetRequestType.Document> documents =
+					new TreeMap<String, ProvideAndRegisterDocumentSetRequestType.Document>(InfosetUtil.getDocuments(request));
+			for (Map.Entry<String, ProvideAndRegisterDocumentSetRequestType.Document> entry : documents.entrySet()) {
+				digest.update(entry.getKey().getBytes("UTF-8"));
+				digest.update((byte) 0);
+				if (entry.getValue().getValue() != null) {
+					digest.update(entry.getValue().getValue());
+				}
+				digest.update((byte) 0);
+			}
+			return bytesToHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the response kept for the submission set if it was processed with the same documents
+	 * and the response hasn't expired, or null if it has to be claimed
+	 */
+	protected SubmissionReplay getCompletedSubmissionReplay(final String submissionSetUID, String payloadDigest, int retentionHours) {
+		SubmissionReplay replay = executeSeparately(true, new TransactionCallback<SubmissionReplay>() {
+			@Override
+			public SubmissionReplay doInTransaction(TransactionStatus status) {
+				return dao.getSubmissionReplay(submissionSetUID);
+			}
+		});
+		if (replay == null || replay.getResponse() == null || !replay.getPayloadDigest().equalsIgnoreCase(payloadDigest)
+				|| replay.getDateCreated().before(DateUtils.addHours(new Date(), -retentionHours))) {
+			return null;
+		}
+		return replay;
+	}
+
+	/**
+	 * Claims the submission set, so that a retry that arrives while the original is still being
+	 * processed is turned away rather than registering the documents a second time. The claim is a
+	 * pending replay, inserted in a transaction of its own so that other submissions see it straight
+	 * away. The unique submission set id lets only one submission insert it, the others read what it
+	 * holds instead.
+	 *
+	 * @return the replay to answer with if the submission set was already processed, a pending replay
+	 * if it was claimed by this submission, or null if it is processed without being kept because it
+	 * was submitted again with different documents
+	 * @throws XDSException if the submission set is being processed by another submission
+	 */
+	protected SubmissionReplay claimSubmissionReplay(final String submissionSetUID, final String payloadDigest, int retentionHours)
+			throws XDSException {
+		final Date now = new Date();
+		// a second attempt when the replay was purged or taken over in between
+		for (int attempt = 0; attempt < 2; attempt++) {
+			boolean inserted = executeSeparately(false, new TransactionCallback<Boolean>() {
+				@Override
+				public Boolean doInTransaction(TransactionStatus status) {
+					return dao.insertSubmissionReplay(submissionSetUID, payloadDigest, now);
+				}
+			});
+			if (inserted) {
+				return claimedSubmissionReplay(submissionSetUID, payloadDigest, now);
+			}
+
+			final SubmissionReplay replay = executeSeparately(true, new TransactionCallback<SubmissionReplay>() {
+				@Override
+				public SubmissionReplay doInTransaction(TransactionStatus status) {
+					return dao.getSubmissionReplay(submissionSetUID);
+				}
+			});
+			if (replay == null) {
+				continue;
+			}
+
+			boolean pending = replay.getResponse() == null;
+			Date expiredBefore = pending ? DateUtils.addMinutes(now, -PENDING_REPLAY_TIMEOUT_MINUTES)
+					: DateUtils.addHours(now, -retentionHours);
+			if (replay.getDateCreated().before(expiredBefore)) {
+				boolean takenOver = executeSeparately(false, new TransactionCallback<Boolean>() {
+					@Override
+					public Boolean doInTransaction(TransactionStatus status) {
+						return dao.takeOverSubmissionReplay(submissionSetUID, replay.getDateCreated(), payloadDigest, now);
+					}
+				});
+				if (takenOver) {
+					if (pending) {
+						log.warn("Submission set " + submissionSetUID + " was claimed at " + replay.getDateCreated()
+								+ " by a submission that hasn't completed, processing it again");
+					}
+					return claimedSubmissionReplay(submissionSetUID, payloadDigest, now);
+				}
+				continue;
+			}
+
+			if (!replay.getPayloadDigest().equalsIgnoreCase(payloadDigest)) {
+				log.warn("Submission set " + submissionSetUID + " was submitted again with different documents, processing it as a new submission");
+				return null;
+			}
+			if (!pending) {
+				return replay;
+			}
+			break;
+		}
+		throw new XDSException(XDSbServiceConstants.ERROR_XDS_REPOSITORY_BUSY,
+				"Submission set " + submissionSetUID + " is still being processed, please try again later", null);
+	}
+
+	/**
+	 * @return the pending replay of a claimed submission set
+	 */
+	private SubmissionReplay claimedSubmissionReplay(String submissionSetUID, String payloadDigest, Date now) {
+		SubmissionReplay claim = new SubmissionReplay();
+		claim.setSubmissionSetUniqueId(submissionSetUID);
+		claim.setPayloadDigest(payloadDigest);
+		claim.setDateCreated(now);
+		return claim;
+	}
+
+	/**
+	 * Deletes the claim on a submission set that wasn't stored
+	 */
+	private void releaseSubmissionReplay(final String submissionSetUID) {
+		try {
+			executeSeparately(false, new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus status) {
+					return dao.deletePendingSubmissionReplay(submissionSetUID);
+				}
+			});
+		} catch (RuntimeException e) {
+			log.warn("Could not release the claim on submission set " + submissionSetUID
+					+ ", retries are turned away until it times out", e);
+		}
+	}
+
+	protected RegistryResponseType getReplayedResponse(SubmissionReplay replay) throws JAXBException {
+		return getRegistryResponseContext().createUnmarshaller()
+				.unmarshal(new StreamSource(new StringReader(replay.getResponse())), RegistryResponseType.class).getValue();
+	}
+
+	/**
+	 * Completes the claim on the submission set with the response, in the transaction that stores
+	 * the documents so that the response is only kept if the documents are
+	 */
+	protected void saveSubmissionReplay(String submissionSetUID, RegistryResponseType response) throws JAXBException {
+		StringWriter xml = new StringWriter();
+		getRegistryResponseContext().createMarshaller().marshal(
+				new JAXBElement<RegistryResponseType>(REGISTRY_RESPONSE_QNAME, RegistryResponseType.class, response), xml);
+
+		if (dao.completeSubmissionReplay(submissionSetUID, xml.toString(), new Date()) == 0) {
+			log.warn("The claim on submission set " + submissionSetUID + " was taken over by a retry, its response is not kept");
+		}
+	}
+
+	private static JAXBContext getRegistryResponseContext() throws JAXBException {
+		if (registryResponseContext == null) {
+			registryResponseContext = JAXBContext.newInstance("org.dcm4chee.xds2.infoset.rim");
+		}
+		return registryResponseContext;
+	}
+
+	/**
+	 * Works out the queue priority of a submission's documents. A submission set can ask for a
+	 * priority with the {@link #SLOT_NAME_QUEUE_PRIORITY} slot (LIVE or BULK), otherwise it is bulk if
+	 * its source id is one of the configured bulk source ids and live if not.
+	 */
+	protected QueueItem.Priority getQueuePriority(ProvideAndRegisterDocumentSetRequestType request) {
+		RegistryPackageType submissionSet = InfosetUtil.getRegistryPackage(request.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
+		if (submissionSet == null) {
+			return QueueItem.Priority.LIVE;
+		}
+
+		String requested = InfosetUtil.getSlotValue(submissionSet.getSlot(), SLOT_NAME_QUEUE_PRIORITY, null);
+		if (requested != null) {
+			try {
+				return QueueItem.Priority.valueOf(requested.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				log.warn("Ignoring unknown queue priority " + requested);
+			}
+		}
+
+		String sourceId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_sourceId, submissionSet);
+		if (sourceId != null && getConfiguration().getAsyncBulkSourceIds().contains(sourceId.trim())) {
+			return QueueItem.Priority.BULK;
+		}
+		return QueueItem.Priority.LIVE;
+	}
+
 	protected boolean isClassifiedAsCDA(ExtrinsicObjectType eot) {
 		for (ClassificationType ct : eot.getClassification()) {
 			if (ct.getClassificationScheme().equalsIgnoreCase(XDSConstants.UUID_XDSDocumentEntry_formatCode) &&
@@ -328,15 +846,22 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 	protected String getDocumentUniqueId(ExtrinsicObjectType eot) throws XDSException {
-		String docUniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eot);
+		final String docUniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eot);
 
-		// Do not store duplicates
-		try {
-			if (Context.getService(XDSbService.class).getDocumentHandlerClass(docUniqueId) != null) {
-				throw new XDSException(XDSException.XDS_ERR_DOCUMENT_UNIQUE_ID_ERROR, String.format("Document id %s is duplicate", docUniqueId), null);
+		// Do not store duplicates. Checked in a transaction of its own, before the transaction that
+		// stores the documents is started.
+		boolean duplicate = executeSeparately(true, new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean doInTransaction(TransactionStatus status) {
+				try {
+					return dao.getDocumentHandlerClass(docUniqueId) != null;
+				} catch (ClassNotFoundException e) {
+					throw new IllegalStateException(e.getMessage(), e);
+				}
 			}
-		} catch (ClassNotFoundException e) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, e.getMessage(), e);
+		});
+		if (duplicate) {
+			throw new XDSException(XDSException.XDS_ERR_DOCUMENT_UNIQUE_ID_ERROR, String.format("Document id %s is duplicate", docUniqueId), null);
 		}
 
 		return docUniqueId;
@@ -448,13 +973,27 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		defaultHandler.saveContent(patient, providersByRole, encounterType, content, encounter);
 		// If another handler exists send to that as well, do this async if config is set
 		if (discreteHandler != null) {
-			if (Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC, "false").equalsIgnoreCase("true")) {
+			if (getConfiguration().isDiscreteHandlerAsync()) {
 				QueueItem qi = new QueueItem();
 				qi.setDocUniqueId(docUniqueId);
 				qi.setPatient(patient);
 				qi.setEncounterType(encounterType);
-				String rolesProvidersStr = stringifyRoleProvidersMap(providersByRole);
-				qi.setRoleProviderMap(rolesProvidersStr);
+				qi.setProviders(toQueueItemProviders(providersByRole));
+				qi.setTypeCode(typeCode != null ? typeCode.getCode() : null);
+				qi.setFormatCode(formatCode != null ? formatCode.getCode() : null);
+				qi.setPriority(getQueuePriority(request));
+
+				// hand the payload to the processors so they don't have to read it back from the store. Only
+				// once the submission commits, so that a rolled back submission leaves nothing behind, and
+				// registered before the item is queued so that it is there before a processor is woken.
+				final ContentHandoffCache contentHandoffCache = getContentHandoffCache();
+				final Content handedOff = content;
+				Utils.runAfterCommit(new Runnable() {
+					@Override
+					public void run() {
+						contentHandoffCache.put(handedOff);
+					}
+				});
 
 				XDSbService xdsService = Context.getService(XDSbService.class);
 				xdsService.queueDiscreteDataProcessing(qi);
@@ -472,8 +1011,21 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 	/**
-	 * Represent the roles to provider map as a string using ids. This is done so that we don't have to
-	 * perform complex hibernate mappings and so that we don't have to extend the OpenMRS provider object.
+	 * @return the ids of the providers by role, as they are kept on a queue item
+	 */
+	protected Set<QueueItemProvider> toQueueItemProviders(Map<EncounterRole, Set<Provider>> providersByRole) {
+		Set<QueueItemProvider> queueItemProviders = new HashSet<QueueItemProvider>();
+		for (Map.Entry<EncounterRole, Set<Provider>> entry : providersByRole.entrySet()) {
+			for (Provider provider : entry.getValue()) {
+				queueItemProviders.add(new QueueItemProvider(entry.getKey().getId(), provider.getId()));
+			}
+		}
+		return queueItemProviders;
+	}
+
+	/**
+	 * Represent the roles to provider map as a string using ids. This is the format of the role_provider_map
+	 * column of items queued before the providers were kept in xdsbrepository_queue_provider.
 	 * @param providersByRole a map of roles to a set of providers
 	 * @return a string format of the map eg. 2:23,24,26|4:19,12 where the format is:
 	 * <role_id>:<provider_id>,<provider_id>,...|<role_id>:<provider_id>,<provider_id>,...|...
@@ -515,9 +1067,23 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 
 		EncounterService es = Context.getEncounterService();
 		String encounterTypeUuid = "";
-		EncounterType encounterType = null;
 		if (encounter.length > 2) {
 			encounterTypeUuid = encounter[2];
+		}
+
+		final MetadataCache cache = getMetadataCache();
+		final String lookupKey = encounterTypeUuid + "|" + classCode;
+		Integer encounterTypeId = cache.getEncounterTypeId(lookupKey);
+		if (encounterTypeId != null) {
+			EncounterType encounterType = es.getEncounterType(encounterTypeId);
+			if (encounterType != null) {
+				return encounterType;
+			}
+			cache.evictEncounterTypeId(lookupKey);
+		}
+
+		EncounterType encounterType = null;
+		if (!encounterTypeUuid.equals("")) {
 			encounterType = es.getEncounterTypeByUuid(encounterTypeUuid);
 		}
 
@@ -534,6 +1100,16 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 				encounterType.setUuid(encounterTypeUuid);
 			}
 			encounterType = es.saveEncounterType(encounterType);
+
+			final Integer createdId = encounterType.getId();
+			Utils.runAfterCommit(new Runnable() {
+				@Override
+				public void run() {
+					cache.putEncounterTypeId(lookupKey, createdId);
+				}
+			});
+		} else {
+			cache.putEncounterTypeId(lookupKey, encounterType.getId());
 		}
 
 		return encounterType;
@@ -704,29 +1280,62 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		return encounterLocation;
 	}
 
-	private Location setSoftwareVersionForLocation(VersionInfoType softwareVersion, Location encounterLocation) {
-		LocationAttributeType type = getSoftwareVersionAttributeType();
-		LocationAttribute attribute = null;
+	/**
+	 * Stores the software version against the location, the location is only saved when the
+	 * version actually changes so that concurrent submissions from a facility don't all lock it.
+	 */
+	private Location setSoftwareVersionForLocation(VersionInfoType softwareVersion, final Location encounterLocation) {
+		final String version = softwareVersion.getVersionName();
+		final MetadataCache cache = getMetadataCache();
+		if (version != null && version.equals(cache.getSoftwareVersion(encounterLocation.getUuid()))) {
+			return encounterLocation;
+		}
 
+		// the attribute type is matched by its well known uuid, it is only resolved when an attribute
+		// has to be added so that an unchanged version costs no attribute type lookup
+		LocationAttribute attribute = null;
 		for (LocationAttribute tmpAttribute : encounterLocation.getAttributes()) {
-			if (tmpAttribute.getAttributeType().getUuid().equals(type.getUuid())) {
+			if (LOCATION_ATTRIBUTE_TYPE_SOFTWARE_VERSION_UUID.equals(tmpAttribute.getAttributeType().getUuid())) {
 				attribute = tmpAttribute;
 				break;
 			}
 		}
 
+		if (attribute != null && version != null && version.equals(attribute.getValue())) {
+			cache.putSoftwareVersion(encounterLocation.getUuid(), version);
+			return encounterLocation;
+		}
+
 		if (attribute == null) {
 			attribute = new LocationAttribute();
-			attribute.setAttributeType(type);
+			attribute.setAttributeType(getSoftwareVersionAttributeType());
 			encounterLocation.addAttribute(attribute);
 		}
 
-		attribute.setValue(softwareVersion.getVersionName());
-		return Context.getLocationService().saveLocation(encounterLocation);
+		attribute.setValue(version);
+		Location savedLocation = Context.getLocationService().saveLocation(encounterLocation);
+		Utils.runAfterCommit(new Runnable() {
+			@Override
+			public void run() {
+				cache.putSoftwareVersion(encounterLocation.getUuid(), version);
+			}
+		});
+		return savedLocation;
 	}
 
 	public LocationAttributeType getSoftwareVersionAttributeType() {
 		LocationService locationService = Context.getLocationService();
+		final MetadataCache cache = getMetadataCache();
+
+		Integer typeId = cache.getSoftwareVersionAttributeTypeId();
+		if (typeId != null) {
+			LocationAttributeType type = locationService.getLocationAttributeType(typeId);
+			if (type != null) {
+				return type;
+			}
+			cache.setSoftwareVersionAttributeTypeId(null);
+		}
+
 		LocationAttributeType type = locationService
 				.getLocationAttributeTypeByUuid(LOCATION_ATTRIBUTE_TYPE_SOFTWARE_VERSION_UUID);
 		if (type == null) {
@@ -735,6 +1344,16 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 			type.setUuid(LOCATION_ATTRIBUTE_TYPE_SOFTWARE_VERSION_UUID);
 			type.setDatatypeClassname( "org.openmrs.customdatatype.datatype.FreeTextDatatype" );
 			type = locationService.saveLocationAttributeType(type);
+
+			final Integer createdId = type.getId();
+			Utils.runAfterCommit(new Runnable() {
+				@Override
+				public void run() {
+					cache.setSoftwareVersionAttributeTypeId(createdId);
+				}
+			});
+		} else {
+			cache.setSoftwareVersionAttributeTypeId(type.getId());
 		}
 		return type;
 	}
@@ -744,8 +1363,19 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		if (id.length < 4) {
 			return null;
 		}
-		String formId = eo.getId().split("/")[3];
+		final String formId = eo.getId().split("/")[3];
 		FormService formService = Context.getFormService();
+
+		final MetadataCache cache = getMetadataCache();
+		Integer cachedId = cache.getFormId(formId);
+		if (cachedId != null) {
+			Form encounterForm = formService.getForm(cachedId);
+			if (encounterForm != null) {
+				return encounterForm;
+			}
+			cache.evictFormId(formId);
+		}
+
 		Form encounterForm = formService.getFormByUuid(formId);
 		if (encounterForm == null) {
 			encounterForm = new Form();
@@ -753,6 +1383,16 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 			encounterForm.setVersion(FORM_VERSION);
 			encounterForm.setUuid(formId);
 			encounterForm = formService.saveForm(encounterForm);
+
+			final Integer createdId = encounterForm.getId();
+			Utils.runAfterCommit(new Runnable() {
+				@Override
+				public void run() {
+					cache.putFormId(formId, createdId);
+				}
+			});
+		} else {
+			cache.putFormId(formId, encounterForm.getId());
 		}
 
 		return encounterForm;
@@ -846,22 +1486,9 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 			String authorXCN = slot.getValueList().getValue().get(0);
 			String[] xcnComponents = authorXCN.split("\\^", -1);
 
-			// attempt to find the provider
-			if (!xcnComponents[0].isEmpty()) {
-				// there is an identifier
-				Provider pro = ps.getProviderByIdentifier(xcnComponents[0]);
-				if (pro != null) {
-					return pro;
-				}
-			} else {
-				// we only have a name - this shouldn't happen under OpenHIE as we should always
-				// have a provider id (EPID) - Warning this could get slow...
-				List<Provider> allProviders = ps.getAllProviders();
-				for (Provider pro : allProviders) {
-					if (pro.getName().startsWith(xcnComponents[2]) && pro.getName().contains(xcnComponents[1])) {
-						return pro;
-					}
-				}
+			Provider pro = findProvider(xcnComponents);
+			if (pro != null) {
+				return pro;
 			}
 
 			// no provider found - let's create one
@@ -871,6 +1498,32 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		return null;
 	}
 
+	/**
+	 * Find a provider by the identifier in the author XCN, or by name if there is no identifier
+	 *
+	 * @param xcnComponents
+	 * @return the provider or null if there is none
+	 */
+	private Provider findProvider(String[] xcnComponents) {
+		ProviderService ps = Context.getProviderService();
+
+		// attempt to find the provider
+		if (!xcnComponents[0].isEmpty()) {
+			// there is an identifier
+			return ps.getProviderByIdentifier(xcnComponents[0]);
+		}
+
+		// we only have a name - this shouldn't happen under OpenHIE as we should always
+		// have a provider id (EPID) - Warning this could get slow...
+		List<Provider> allProviders = ps.getAllProviders();
+		for (Provider pro : allProviders) {
+			if (pro.getName().startsWith(xcnComponents[2]) && pro.getName().contains(xcnComponents[1])) {
+				return pro;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Create a provider
 	 *
@@ -976,7 +1629,7 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		if (patients.size() > 1) {
 			throw new PatientIdentifierException("Multiple patients found for this identifier: " + id.getIdentifier() + ", with id type: " + id.getAssigningAuthority().getAssigningAuthorityId());
 		} else if (patients.size() < 1) {
-			if (Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_PATIENTS).equals("true")) {
+			if (getConfiguration().isAutoCreatePatients()) {
 				retVal = ps.savePatient(this.createPatient(eo, id.getIdentifier(), idType));
 			} else {
 				throw new XDSException(XDSException.XDS_ERR_UNKNOWN_PATID, String.format("Patient ID %s is not known to the repository", id.getIdentifier()), null);
@@ -1047,22 +1700,28 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 	private PatientIdentifierType getIdentifierType(Identifier id, PatientService ps) throws XDSException {
+		PatientIdentifierType identifierType = findIdentifierType(id, ps);
+
+		if (identifierType == null) {
+			identifierType = createIdentifierType(id, ps);
+		}
+
+		return identifierType;
+	}
+
+	private PatientIdentifierType findIdentifierType(Identifier id, PatientService ps) {
 		String domain = id.getAssigningAuthority().getAssigningAuthorityId();
 		PatientIdentifierType identifierType = null;
 
 		String identifierUuid = identifierMapper.getMappedLocalIdentifierTypeUuid(domain);
 		if (identifierUuid != null) {
-			identifierType = Context.getPatientService().getPatientIdentifierTypeByUuid(identifierUuid);
+			identifierType = ps.getPatientIdentifierTypeByUuid(identifierUuid);
 		}
 
 		if (identifierType == null) {
 			identifierType = ps.getPatientIdentifierTypeByName(domain);
 		}
 
-		if (identifierType == null) {
-			identifierType = createIdentifierType(id, ps);
-		}
-
 		return identifierType;
 	}
 
@@ -1210,38 +1869,349 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 	@Override
-	@Transactional(readOnly = true)
+	@Transactional
 	public QueueItem queueDiscreteDataProcessing(QueueItem qi) {
-		qi.setStatus(QueueItem.Status.QUEUED);
-		qi.setDateAdded(new Date());
-		return dao.queueDiscreteDataProcessing(qi);
+		if (qi.getPriority() == null) {
+			qi.setPriority(QueueItem.Priority.LIVE);
+		}
+		Date now = new Date();
+
+		// a document has at most one active item, queuing it again updates that item rather than adding
+		// another one. Enqueues of a document wait for each other, the updates see the item queued by
+		// the enqueue that was waited for as they don't read from the transaction's snapshot.
+		lockKey("queue:" + qi.getDocUniqueId());
+		if (dao.coalesceQueueItem(qi, QueueItem.Status.QUEUED, now) > 0
+				|| dao.coalesceQueueItem(qi, QueueItem.Status.PROCESSING, now) > 0) {
+			Set<QueueItemProvider> providers = qi.getProviders();
+			qi = dao.getActiveQueueItem(qi.getDocUniqueId());
+			qi.getProviders().clear();
+			if (providers != null) {
+				qi.getProviders().addAll(providers);
+			}
+		} else {
+			qi.setStatus(QueueItem.Status.QUEUED);
+			qi.setActiveDocId(qi.getDocUniqueId());
+			qi.setDateAdded(now);
+			qi.setNextAttemptAt(now);
+			qi = dao.queueDiscreteDataProcessing(qi);
+		}
+
+		// wake a processor once the item is visible to it. With processor pools the one that is woken
+		// may not be on the item's route, so they are all woken.
+		final QueueSignal queueSignal = getQueueSignal();
+		final boolean routed = getConfiguration().getProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_POOLS, null) != null;
+		Utils.runAfterCommit(new Runnable() {
+			@Override
+			public void run() {
+				if (routed) {
+					queueSignal.wakeAll();
+				} else {
+					queueSignal.signalWork();
+				}
+			}
+		});
+		return qi;
 	}
 
 	@Override
 	@Transactional
 	public QueueItem dequeueNextDiscreteDataForProcessing() {
-		QueueItem qi = dao.dequeueNextDiscreteDataForProcessing();
-		if (qi != null) {
-			qi.setStatus(QueueItem.Status.PROCESSING);
-			qi.setDateUpdated(new Date());
-			return dao.updateQueueItem(qi);
-		} else {
-			return null;
+		List<QueueItem> claimed = dequeueDiscreteDataForProcessing(1);
+		return claimed.isEmpty() ? null : claimed.get(0);
+	}
+
+	@Override
+	@Transactional
+	public List<QueueItem> dequeueDiscreteDataForProcessing(int maxItems) {
+		return dequeueDiscreteDataForProcessing(maxItems, null);
+	}
+
+	@Override
+	@Transactional
+	public List<QueueItem> dequeueDiscreteDataForProcessing(int maxItems, QueueRoute route) {
+		return dequeueDiscreteDataForProcessing(maxItems, route, getQueueItemOwner());
+	}
+
+	@Override
+	@Transactional
+	public List<QueueItem> dequeueDiscreteDataForProcessing(int maxItems, QueueRoute route, String owner) {
+		Date leaseUntil = new Date(System.currentTimeMillis() + getConfiguration().getAsyncLeaseSeconds() * 1000L);
+
+		// look at more candidates than needed as other workers may be claiming the same items
+		Date now = new Date();
+		Iterator<Integer> liveIds = dao.getNextQueuedItemIds(now, QueueItem.Priority.LIVE, route, maxItems * CLAIM_CANDIDATE_FACTOR).iterator();
+		Iterator<Integer> bulkIds = dao.getNextQueuedItemIds(now, QueueItem.Priority.BULK, route, maxItems * CLAIM_CANDIDATE_FACTOR).iterator();
+
+		// weighted fair selection, live items get liveWeight of every liveWeight + 1 slots and the other
+		// slot goes to bulk items. A slot that its class can't fill is given to the other class.
+		int liveWeight = Math.max(1, getConfiguration().getAsyncLiveWeight());
+		List<QueueItem> claimed = new ArrayList<QueueItem>();
+		while (claimed.size() < maxItems && (liveIds.hasNext() || bulkIds.hasNext())) {
+			boolean bulkSlot = claimRound.getAndIncrement() % (liveWeight + 1) == liveWeight;
+			Iterator<Integer> preferred = bulkSlot ? bulkIds : liveIds;
+			Iterator<Integer> other = bulkSlot ? liveIds : bulkIds;
+
+			QueueItem qi = claimNext(preferred, owner, leaseUntil, now);
+			if (qi == null) {
+				qi = claimNext(other, owner, leaseUntil, now);
+			}
+			if (qi != null) {
+				claimed.add(qi);
+			}
 		}
+		return claimed;
+	}
+
+	/**
+	 * @return the first of the candidates that could be claimed or null if none could be
+	 */
+	private QueueItem claimNext(Iterator<Integer> candidateIds, String owner, Date leaseUntil, Date now) {
+		while (candidateIds.hasNext()) {
+			QueueItem qi = dao.claimQueueItem(candidateIds.next(), owner, leaseUntil, now);
+			if (qi != null) {
+				return qi;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	@Transactional
+	public int requeueExpiredQueueItems() {
+		Date now = new Date();
+		// an item that keeps killing its worker must not be retried forever
+		int dead = dao.deadLetterExpiredQueueItems(now, getConfiguration().getAsyncMaxAttempts());
+		if (dead > 0) {
+			log.warn(dead + " discrete data queue items were marked as dead after their final processing lease expired");
+		}
+		return dao.requeueExpiredQueueItems(now);
+	}
+
+	@Override
+	@Transactional
+	public boolean extendQueueItemLease(Integer id) {
+		return extendQueueItemLease(id, getQueueItemOwner());
+	}
+
+	@Override
+	@Transactional
+	public boolean extendQueueItemLease(Integer id, String owner) {
+		Date leaseUntil = new Date(System.currentTimeMillis() + getConfiguration().getAsyncLeaseSeconds() * 1000L);
+		return dao.extendQueueItemLease(id, owner, leaseUntil);
+	}
+
+	@Override
+	@Transactional
+	public QueueItem failQueueItem(QueueItem qi, String errorMessage) {
+		return failQueueItem(qi, errorMessage, getQueueItemOwner());
+	}
+
+	@Override
+	@Transactional
+	public QueueItem failQueueItem(QueueItem qi, String errorMessage, String owner) {
+		XDSbRepositoryConfiguration configuration = getConfiguration();
+		Date now = new Date();
+		Date nextAttemptAt = new Date(now.getTime() + getRetryDelay(qi.getAttempts(), configuration));
+		QueueItem failed = dao.failQueueItem(qi.getId(), owner,
+				StringUtils.abbreviate(errorMessage, MAX_ERROR_MESSAGE_LENGTH), configuration.getAsyncMaxAttempts(),
+				nextAttemptAt, now);
+		if (failed == null) {
+			log.warn("Queue item " + qi.getId() + " is no longer claimed by " + owner
+					+ ", its lease probably expired, the failed attempt is not recorded");
+		}
+		return failed;
+	}
+
+	/**
+	 * @return the owner recorded on the queue items claimed by the current thread when the caller
+	 * doesn't give one, the thread's name may be used again by a later thread
+	 */
+	private String getQueueItemOwner() {
+		return NODE_ID + "/" + Thread.currentThread().getName();
+	}
+
+	/**
+	 * Exponential backoff with jitter, so that items that failed together aren't all retried together
+	 *
+	 * @return the number of milliseconds to wait before the next attempt
+	 */
+	protected long getRetryDelay(int attempts, XDSbRepositoryConfiguration configuration) {
+		long maxDelay = configuration.getAsyncRetryMaxDelay() * 1000L;
+		long delay = configuration.getAsyncRetryBaseDelay() * 1000L;
+		for (int i = 1; i < attempts && delay < maxDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelay);
+		return delay / 2 + (long) (Math.random() * (delay / 2 + 1));
+	}
+
+	/**
+	 * Queues the dead items in batches of {@link #REQUEUE_BATCH_SIZE}, each batch in a transaction of
+	 * its own so that the documents' active items aren't all locked until the last one is queued
+	 */
+	@Override
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public int requeueDeadQueueItems() {
+		int requeued = 0;
+		int batch;
+		do {
+			batch = executeSeparately(false, new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus status) {
+					List<Integer> ids = dao.getRevivableDeadQueueItemIds(REQUEUE_BATCH_SIZE);
+					return ids.isEmpty() ? 0 : dao.reviveDeadQueueItems(ids, new Date());
+				}
+			});
+			requeued += batch;
+		} while (batch == REQUEUE_BATCH_SIZE);
+		return requeued;
 	}
 
 	@Override
 	@Transactional
 	public QueueItem completeQueueItem(QueueItem qi, boolean successful) {
-		if (successful) {
-			qi.setStatus(QueueItem.Status.SUCCESSFUL);
+		Date now = new Date();
+		if (qi.isRequeueRequested()) {
+			// the document has been submitted again while it was being processed
+			qi.setStatus(QueueItem.Status.QUEUED);
+			qi.setRequeueRequested(false);
+			qi.setAttempts(0);
+			qi.setNextAttemptAt(now);
+			qi.setOwner(null);
 		} else {
-			qi.setStatus(QueueItem.Status.FAILED);
+			qi.setStatus(successful ? QueueItem.Status.SUCCESSFUL : QueueItem.Status.FAILED);
+			qi.setActiveDocId(null);
 		}
-		qi.setDateUpdated(new Date());
+		qi.setLeaseUntil(null);
+		qi.setDateUpdated(now);
 		return dao.updateQueueItem(qi);
 	}
 
+	@Override
+	@Transactional
+	public int completeQueueItems(List<Integer> ids) {
+		return completeQueueItems(ids, getQueueItemOwner());
+	}
+
+	@Override
+	@Transactional
+	public int completeQueueItems(List<Integer> ids, String owner) {
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		return dao.completeQueueItems(ids, owner, new Date());
+	}
+
+	@Override
+	@Transactional
+	public int releaseQueueItems(List<Integer> ids) {
+		return releaseQueueItems(ids, getQueueItemOwner());
+	}
+
+	@Override
+	@Transactional
+	public int releaseQueueItems(List<Integer> ids, String owner) {
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		return dao.releaseQueueItems(ids, owner, new Date());
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<Provider> getProvidersByIds(Collection<Integer> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<Provider>();
+		}
+		return dao.getProviders(ids);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<EncounterRole> getEncounterRolesByIds(Collection<Integer> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<EncounterRole>();
+		}
+		return dao.getEncounterRoles(ids);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public long getQueueDepth() {
+		return dao.getQueueDepth(new Date());
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public Date getOldestDueQueueItemDate() {
+		return dao.getOldestDueQueueItemDate(new Date(), QueueItem.Priority.LIVE);
+	}
+
+	@Override
+	@Transactional
+	public int purgeSubmissionReplays(Date createdBefore) {
+		return dao.deleteSubmissionReplays(createdBefore);
+	}
+
+	@Override
+	@Transactional
+	public int purgeKeyLocks(Date lockedBefore) {
+		return dao.deleteKeyLocks(lockedBefore);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public QueueItem getQueueItem(Integer id) {
+		return dao.getQueueItem(id);
+	}
+
+	@Override
+	@Transactional
+	public int purgeFinishedQueueItems(Date finishedBefore, int maxItems) {
+		List<Object[]> finished = dao.getFinishedQueueItems(finishedBefore, maxItems);
+		if (finished.isEmpty()) {
+			return 0;
+		}
+
+		// roll the items up into their day's counts in the same transaction that deletes them, so that
+		// every item is counted exactly once
+		Map<String, QueueDailyStat> stats = new HashMap<String, QueueDailyStat>();
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Object[] row : finished) {
+			ids.add((Integer) row[0]);
+			Date finishedAt = row[1] != null ? (Date) row[1] : (Date) row[2];
+			Date statDate = DateUtils.truncate(finishedAt, Calendar.DAY_OF_MONTH);
+			QueueItem.Status status = (QueueItem.Status) row[3];
+			QueueItem.Priority priority = row[4] != null ? (QueueItem.Priority) row[4] : QueueItem.Priority.LIVE;
+
+			String key = statDate.getTime() + "|" + status + "|" + priority;
+			QueueDailyStat stat = stats.get(key);
+			if (stat == null) {
+				stat = dao.getQueueDailyStat(statDate, status, priority);
+				if (stat == null) {
+					stat = new QueueDailyStat();
+					stat.setStatDate(statDate);
+					stat.setStatus(status);
+					stat.setPriority(priority);
+				}
+				stats.put(key, stat);
+			}
+			stat.setItemCount(stat.getItemCount() + 1);
+			stat.setAttemptCount(stat.getAttemptCount() + (Integer) row[5]);
+		}
+
+		for (QueueDailyStat stat : stats.values()) {
+			dao.saveQueueDailyStat(stat);
+		}
+		return dao.deleteQueueItems(ids);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<QueueDailyStat> getQueueDailyStats(Date fromDate, Date toDate) {
+		return dao.getQueueDailyStats(fromDate, toDate);
+	}
+
 	/**
 	* Register documents on registry
 	* @throws Exception
@@ -1251,18 +2221,18 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		DocumentRegistryPortType port = DocumentRegistryPortTypeFactory.getDocumentRegistryPortSoap12(registryUrl.toString());
 		log.info("XDS.b: Send register document-b request to registry:" + registryUrl);
 		// Auditing code
-		EventTypeCode eventTypeCode = EventTypeCode.ITI_42_RegisterDocumentSetB;
+		boolean onDemand = false;
 		boolean wasSuccess = true;
+		String repositoryUniqueId = getConfiguration().getRepositoryUniqueId();
 
-		
 		// JF: Fix meta-data issue
 		for(ExtrinsicObjectType eot : InfosetUtil.getExtrinsicObjects(submitObjectRequest))
 		{
 			if(!eot.getObjectType().equals(XDSConstants.UUID_XDSDocumentEntry))
-				eventTypeCode = new EventTypeCode("ITI-61", "IHE Transactions", "Register On-Demand Document Entry");
+				onDemand = true;
 
 			try {
-				InfosetUtil.addOrOverwriteSlot(eot, SLOT_NAME_REPOSITORY_UNIQUE_ID, Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP));
+				InfosetUtil.addOrOverwriteSlot(eot, SLOT_NAME_REPOSITORY_UNIQUE_ID, repositoryUniqueId);
 			} catch (JAXBException e) {
 				e.printStackTrace();
 			}
@@ -1281,7 +2251,6 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		RegistryPackageType submissionSet = InfosetUtil.getRegistryPackage(submitObjectRequest, XDSConstants.UUID_XDSSubmissionSet);
 		String submissionSetUID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, submissionSet),
 				patID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, submissionSet);
-		AuditRequestInfo info = new AuditRequestInfo(null, null);
 
 		try {
 			
@@ -1293,12 +2262,60 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		}
 		finally
 		{
-			XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
-			XDSAudit.logExport(eventTypeCode, submissionSetUID, patID, XDSConstants.WS_ADDRESSING_ANONYMOUS, AuditLogger.processID(), info.getLocalHost(), registryUrl.toExternalForm(), null, registryUrl.getHost(), null, null, wasSuccess);
+			getAuditDispatcher().dispatch(new RegistryExportAuditEvent(onDemand, submissionSetUID, patID, registryUrl, wasSuccess));
 		}
 		return rsp;
 	}
 
+	protected XDSbRepositoryConfiguration getConfiguration() {
+		if (configurationManager == null) {
+			configurationManager = Utils.getConfigurationManager();
+		}
+		return configurationManager.getConfiguration();
+	}
+
+	protected QueueSignal getQueueSignal() {
+		if (queueSignal == null) {
+			queueSignal = Utils.getQueueSignal();
+		}
+		return queueSignal;
+	}
+
+	protected AuditDispatcher getAuditDispatcher() {
+		if (auditDispatcher == null) {
+			auditDispatcher = Utils.getAuditDispatcher();
+		}
+		return auditDispatcher;
+	}
+
+	protected MetadataCache getMetadataCache() {
+		if (metadataCache == null) {
+			metadataCache = Context.getRegisteredComponent("xdsbrepository.metadataCache", MetadataCache.class);
+		}
+		return metadataCache;
+	}
+
+	protected PlatformTransactionManager getTransactionManager() {
+		if (transactionManager == null) {
+			transactionManager = Context.getRegisteredComponent("transactionManager", PlatformTransactionManager.class);
+		}
+		return transactionManager;
+	}
+
+	protected ContentHandoffCache getContentHandoffCache() {
+		if (contentHandoffCache == null) {
+			contentHandoffCache = Utils.getContentHandoffCache();
+		}
+		return contentHandoffCache;
+	}
+
+	protected SourceRateLimiter getSourceRateLimiter() {
+		if (sourceRateLimiter == null) {
+			sourceRateLimiter = Utils.getSourceRateLimiter();
+		}
+		return sourceRateLimiter;
+	}
+
 	public XDSbDAO getDao() {
 		return dao;
 	}
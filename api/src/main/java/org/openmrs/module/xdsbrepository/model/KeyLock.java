@@ -0,0 +1,46 @@
+package org.openmrs.module.xdsbrepository.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * A row that submissions lock before they create a row for a natural key, e.g. a patient with a
+ * given identifier, so that parallel submissions on any node create it once. The key is a digest
+ * of the natural key so that no identifiers are kept here.
+ */
+@Entity
+@Table(name = "xdsbrepository_key_lock")
+public class KeyLock {
+
+    @Id
+    @Column(name = "lock_key", length = 64)
+    private String lockKey;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "date_created", nullable = false)
+    private Date dateCreated;
+
+    public String getLockKey() {
+        return lockKey;
+    }
+
+    public void setLockKey(String lockKey) {
+        this.lockKey = lockKey;
+    }
+
+    /**
+     * @return when the key was last locked, old rows are purged
+     */
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+}
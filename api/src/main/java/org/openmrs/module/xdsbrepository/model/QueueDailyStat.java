@@ -0,0 +1,104 @@
+package org.openmrs.module.xdsbrepository.model;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * The number of queue items that finished on a day with a status and priority, kept once the queue
+ * items themselves have been purged.
+ */
+@Entity
+@Table(name = "xdsbrepository_queue_daily_stats")
+public class QueueDailyStat {
+
+    @Id
+    @GeneratedValue
+    @Column(name = "id")
+    private Integer id;
+
+    @Temporal(TemporalType.DATE)
+    @Column(name = "stat_date")
+    private Date statDate;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status")
+    private QueueItem.Status status;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "priority")
+    private QueueItem.Priority priority;
+
+    @Basic
+    @Column(name = "item_count")
+    private long itemCount;
+
+    @Basic
+    @Column(name = "attempt_count")
+    private long attemptCount;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the day the queue items finished on
+     */
+    public Date getStatDate() {
+        return statDate;
+    }
+
+    public void setStatDate(Date statDate) {
+        this.statDate = statDate;
+    }
+
+    public QueueItem.Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(QueueItem.Status status) {
+        this.status = status;
+    }
+
+    public QueueItem.Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(QueueItem.Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return the number of queue items
+     */
+    public long getItemCount() {
+        return itemCount;
+    }
+
+    public void setItemCount(long itemCount) {
+        this.itemCount = itemCount;
+    }
+
+    /**
+     * @return the number of attempts it took to process the queue items
+     */
+    public long getAttemptCount() {
+        return attemptCount;
+    }
+
+    public void setAttemptCount(long attemptCount) {
+        this.attemptCount = attemptCount;
+    }
+}
@@ -4,10 +4,13 @@ import org.openmrs.EncounterType;
 import org.openmrs.Patient;
 
 import javax.persistence.Basic;
+import javax.persistence.CollectionTable;
 import javax.persistence.Column;
+import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
@@ -16,13 +19,24 @@ import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 @Entity
 @Table(name = "xdsbrepository_queue")
 public class QueueItem {
 
     public enum Status {
-        QUEUED, PROCESSING, FAILED, SUCCESSFUL
+        QUEUED, PROCESSING, FAILED, SUCCESSFUL,
+        /** failed on every attempt, it is only processed again if it is explicitly requeued */
+        DEAD
+    }
+
+    public enum Priority {
+        /** newly produced clinical documents */
+        LIVE,
+        /** historical backfills and other bulk loads */
+        BULK
     }
 
     @Id
@@ -38,6 +52,10 @@ public class QueueItem {
     @Column(name = "role_provider_map")
     private String roleProviderMap;
 
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "xdsbrepository_queue_provider", joinColumns = @JoinColumn(name = "queue_item_id"))
+    private Set<QueueItemProvider> providers = new HashSet<QueueItemProvider>();
+
     @ManyToOne
     @JoinColumn(name = "encounter_type_id")
     private EncounterType encounterType;
@@ -46,10 +64,30 @@ public class QueueItem {
     @Column(name = "doc_id")
     private String docUniqueId;
 
+    @Basic
+    @Column(name = "type_code")
+    private String typeCode;
+
+    @Basic
+    @Column(name = "format_code")
+    private String formatCode;
+
+    @Basic
+    @Column(name = "active_doc_id")
+    private String activeDocId;
+
+    @Basic
+    @Column(name = "requeue_requested")
+    private boolean requeueRequested;
+
     @Enumerated(EnumType.STRING)
     @Column(name = "status")
     private Status status;
 
+    @Enumerated(EnumType.STRING)
+    @Column(name = "priority")
+    private Priority priority;
+
     @Temporal(TemporalType.TIMESTAMP)
     @Column(name = "date_added")
     private Date dateAdded;
@@ -58,6 +96,26 @@ public class QueueItem {
     @Column(name = "date_updated")
     private Date dateUpdated;
 
+    @Basic
+    @Column(name = "owner")
+    private String owner;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "lease_until")
+    private Date leaseUntil;
+
+    @Basic
+    @Column(name = "attempts")
+    private int attempts;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "next_attempt_at")
+    private Date nextAttemptAt;
+
+    @Basic
+    @Column(name = "error_message")
+    private String errorMessage;
+
     public Date getDateAdded() {
         return dateAdded;
     }
@@ -74,6 +132,107 @@ public class QueueItem {
         this.dateUpdated = dateUpdated;
     }
 
+    /**
+     * @return the worker that claimed this item for processing
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return the time until which the owner's claim on this item is valid
+     */
+    public Date getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public void setLeaseUntil(Date leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
+    /**
+     * @return the number of times this item has been claimed for processing
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the time from which this item may be claimed for processing
+     */
+    public Date getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(Date nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    /**
+     * @return the reason the last attempt to process this item failed
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * @return the document's type code, used to route the item to a processor pool
+     */
+    public String getTypeCode() {
+        return typeCode;
+    }
+
+    public void setTypeCode(String typeCode) {
+        this.typeCode = typeCode;
+    }
+
+    /**
+     * @return the document's format code, used to route the item to a processor pool
+     */
+    public String getFormatCode() {
+        return formatCode;
+    }
+
+    public void setFormatCode(String formatCode) {
+        this.formatCode = formatCode;
+    }
+
+    /**
+     * @return the document's unique id while this item is queued or being processed and null once
+     * it is finished, so that a document only has one active queue item
+     */
+    public String getActiveDocId() {
+        return activeDocId;
+    }
+
+    public void setActiveDocId(String activeDocId) {
+        this.activeDocId = activeDocId;
+    }
+
+    /**
+     * @return true if the document was queued again while this item was being processed, the item is
+     * then queued again when it completes so that the latest submission is processed
+     */
+    public boolean isRequeueRequested() {
+        return requeueRequested;
+    }
+
+    public void setRequeueRequested(boolean requeueRequested) {
+        this.requeueRequested = requeueRequested;
+    }
+
     public Status getStatus() {
         return status;
     }
@@ -82,6 +241,14 @@ public class QueueItem {
         this.status = status;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
     public Integer getId() {
         return id;
     }
@@ -114,6 +281,21 @@ public class QueueItem {
         this.docUniqueId = docUniqueId;
     }
 
+    /**
+     * @return the document's providers and their roles
+     */
+    public Set<QueueItemProvider> getProviders() {
+        return providers;
+    }
+
+    public void setProviders(Set<QueueItemProvider> providers) {
+        this.providers = providers;
+    }
+
+    /**
+     * @return the providers by role encoded as <role_id>:<provider_id>,...|..., only set on items
+     * queued before the providers were kept in their own table
+     */
     public String getRoleProviderMap() {
         return roleProviderMap;
     }
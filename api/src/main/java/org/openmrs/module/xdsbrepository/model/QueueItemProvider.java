@@ -0,0 +1,60 @@
+package org.openmrs.module.xdsbrepository.model;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * A provider of a queued document and the role they had in the encounter. Only ids are kept so
+ * that a worker can load all of an item's providers and roles with one query each.
+ */
+@Embeddable
+public class QueueItemProvider {
+
+    @Column(name = "encounter_role_id", nullable = false)
+    private Integer encounterRoleId;
+
+    @Column(name = "provider_id", nullable = false)
+    private Integer providerId;
+
+    public QueueItemProvider() {
+    }
+
+    public QueueItemProvider(Integer encounterRoleId, Integer providerId) {
+        this.encounterRoleId = encounterRoleId;
+        this.providerId = providerId;
+    }
+
+    public Integer getEncounterRoleId() {
+        return encounterRoleId;
+    }
+
+    public void setEncounterRoleId(Integer encounterRoleId) {
+        this.encounterRoleId = encounterRoleId;
+    }
+
+    public Integer getProviderId() {
+        return providerId;
+    }
+
+    public void setProviderId(Integer providerId) {
+        this.providerId = providerId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof QueueItemProvider)) {
+            return false;
+        }
+        QueueItemProvider other = (QueueItemProvider) o;
+        return (encounterRoleId == null ? other.encounterRoleId == null : encounterRoleId.equals(other.encounterRoleId))
+                && (providerId == null ? other.providerId == null : providerId.equals(other.providerId));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (encounterRoleId == null ? 0 : encounterRoleId.hashCode()) + (providerId == null ? 0 : providerId.hashCode());
+    }
+}
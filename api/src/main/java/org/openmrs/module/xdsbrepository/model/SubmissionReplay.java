@@ -0,0 +1,91 @@
+package org.openmrs.module.xdsbrepository.model;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * The response to a successful Provide and Register submission, kept for a while so that a source
+ * that retries the same submission, e.g. because the first response timed out, gets the same
+ * response again rather than a duplicate document error. While the submission is being processed
+ * the replay is pending and has no response.
+ */
+@Entity
+@Table(name = "xdsbrepository_submission_replay")
+public class SubmissionReplay {
+
+    @Id
+    @GeneratedValue
+    @Column(name = "id")
+    private Integer id;
+
+    @Basic
+    @Column(name = "submission_set_unique_id", nullable = false, unique = true)
+    private String submissionSetUniqueId;
+
+    @Basic
+    @Column(name = "payload_digest", nullable = false)
+    private String payloadDigest;
+
+    @Lob
+    @Column(name = "response")
+    private String response;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "date_created", nullable = false)
+    private Date dateCreated;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getSubmissionSetUniqueId() {
+        return submissionSetUniqueId;
+    }
+
+    public void setSubmissionSetUniqueId(String submissionSetUniqueId) {
+        this.submissionSetUniqueId = submissionSetUniqueId;
+    }
+
+    /**
+     * @return the digest of the submitted documents, a retry only gets the response if it matches
+     */
+    public String getPayloadDigest() {
+        return payloadDigest;
+    }
+
+    public void setPayloadDigest(String payloadDigest) {
+        this.payloadDigest = payloadDigest;
+    }
+
+    /**
+     * @return the registry response that was returned, as XML, or null while the submission is
+     * still being processed
+     */
+    public String getResponse() {
+        return response;
+    }
+
+    public void setResponse(String response) {
+        this.response = response;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+}
@@ -0,0 +1,114 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import org.hibernate.JDBCException;
+import org.springframework.dao.DataAccessException;
+import org.springframework.transaction.TransactionException;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how many discrete data processors to run, using additive increase and multiplicative
+ * decrease (AIMD) like TCP congestion control.
+ * <p/>
+ * The processors record how long each queue item took and whether it, or claiming it, failed
+ * because of the database. At each adjustment the number of processors is cut by a quarter if there
+ * were database errors or items took longer than the target on average, since more processors would
+ * only add to the load on a database that is shared with interactive users. Otherwise one processor
+ * is added while items are waiting to be processed, but only if items were processed since the last
+ * adjustment, processors that aren't getting anything done are no reason to add more. The number
+ * found this way tracks the capacity that is available without having to be tuned by hand.
+ */
+public class ConcurrencyController {
+
+	private static final double DECREASE_FACTOR = 0.75;
+
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong databaseErrors = new AtomicLong();
+
+	/**
+	 * Records a queue item that was processed successfully
+	 *
+	 * @param latencyMillis - how long processing the item took
+	 */
+	public void recordSuccess(long latencyMillis) {
+		processed.incrementAndGet();
+		totalLatency.addAndGet(latencyMillis);
+	}
+
+	/**
+	 * Records a queue item that failed, only failures caused by the database count as errors
+	 *
+	 * @param latencyMillis - how long processing the item took
+	 * @param failure - the reason the item failed
+	 */
+	public void recordFailure(long latencyMillis, Throwable failure) {
+		processed.incrementAndGet();
+		totalLatency.addAndGet(latencyMillis);
+		if (isDatabaseError(failure)) {
+			databaseErrors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records a failure to claim queue items, only failures caused by the database count as errors
+	 *
+	 * @param failure - the reason claiming failed
+	 */
+	public void recordClaimFailure(Throwable failure) {
+		if (isDatabaseError(failure)) {
+			databaseErrors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Works out the number of processors to run from what has been recorded since the last
+	 * adjustment and starts recording afresh
+	 *
+	 * @param current - the number of processors running
+	 * @param queueDepth - the number of queue items that are due to be processed
+	 * @param min - the fewest processors to run
+	 * @param max - the most processors to run
+	 * @param targetLatencyMillis - the average time per item above which processors are removed
+	 * @return the number of processors to run
+	 */
+	public int adjust(int current, long queueDepth, int min, int max, long targetLatencyMillis) {
+		long items = processed.getAndSet(0);
+		long latency = totalLatency.getAndSet(0);
+		long errors = databaseErrors.getAndSet(0);
+
+		int limit = current;
+		if (errors > 0 || (items > 0 && latency / items > targetLatencyMillis)) {
+			limit = (int) (current * DECREASE_FACTOR);
+		} else if (items > 0 && queueDepth > 0) {
+			limit = current + 1;
+		}
+
+		min = Math.max(1, min);
+		return Math.max(min, Math.min(Math.max(min, max), limit));
+	}
+
+	/**
+	 * Forgets what has been recorded since the last adjustment
+	 */
+	public void reset() {
+		processed.set(0);
+		totalLatency.set(0);
+		databaseErrors.set(0);
+	}
+
+	/**
+	 * @return true if the failure, or one of its causes, came from the database or the connection to it
+	 */
+	public static boolean isDatabaseError(Throwable failure) {
+		for (Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof SQLException || t instanceof JDBCException || t instanceof DataAccessException
+					|| t instanceof TransactionException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
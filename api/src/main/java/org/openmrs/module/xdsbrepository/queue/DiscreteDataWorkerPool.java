@@ -0,0 +1,372 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.module.xdsbrepository.tasks.DiscreteDataProcessorTask;
+import org.openmrs.module.xdsbrepository.tasks.QueueLeaseReaperTask;
+import org.openmrs.module.xdsbrepository.tasks.QueuePurgeTask;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the discrete data processors along with the lease reaper and queue purge.
+ * <p/>
+ * The reaper and purge always run while the module is started. Processors only run while the async
+ * global property is enabled, they are started and stopped when it changes.
+ * <p/>
+ * The number of processors follows the asyncMaxTasks global property while the pool is running,
+ * so it can be changed without restarting the module. With adaptiveConcurrency enabled the
+ * {@link ConcurrencyController} periodically picks a number between minTasks and asyncMaxTasks
+ * instead.
+ * <p/>
+ * Named pools of processors can be dedicated to documents with particular type or format codes
+ * with the pools global property, so that slow documents don't hold up fast ones. The processors
+ * above only process the documents that aren't routed to a named pool. Processors that are no
+ * longer needed finish the item they are processing and hand the rest of their batch back to the
+ * queue. Draining the pool does the same for every processor and waits for them to finish.
+ */
+public class DiscreteDataWorkerPool implements GlobalPropertyListener {
+
+	/** the reaper, the purge and the concurrency adjustment */
+	private static final int MAINTENANCE_THREADS = 3;
+	private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	@Autowired
+	@Qualifier("xdsbrepository.configurationManager")
+	private ConfigurationManager configurationManager;
+
+	@Autowired
+	@Qualifier("xdsbrepository.queueSignal")
+	private QueueSignal queueSignal;
+
+	private final List<DiscreteDataProcessorTask> processors = new ArrayList<DiscreteDataProcessorTask>();
+
+	private final Map<String, List<DiscreteDataProcessorTask>> namedProcessors = new LinkedHashMap<String, List<DiscreteDataProcessorTask>>();
+
+	private QueueRoute defaultRoute;
+
+	private final ConcurrencyController concurrencyController = new ConcurrencyController();
+
+	private ScheduledThreadPoolExecutor executor;
+	private QueuePurgeTask purgeTask;
+	private volatile boolean stopping;
+	private int startDelay;
+
+	/**
+	 * Starts the reaper, the purge and, if asynchronous processing is enabled, asyncMaxTasks
+	 * processors, does nothing if already running
+	 */
+	public synchronized void start(XDSbRepositoryConfiguration configuration) {
+		if (executor != null) {
+			return;
+		}
+
+		stopping = false;
+		executor = new ScheduledThreadPoolExecutor(MAINTENANCE_THREADS, new WorkerThreadFactory());
+		// recover items left in processing by a crash or restart straight away and then periodically
+		int reaperInterval = Math.max(1, configuration.getAsyncReaperInterval());
+		executor.scheduleWithFixedDelay(new QueueLeaseReaperTask(getConfigurationManager()),
+				0, reaperInterval, TimeUnit.SECONDS);
+		// purge old finished items when the module has settled down
+		int purgeInterval = Math.max(1, configuration.getAsyncPurgeInterval());
+		purgeTask = new QueuePurgeTask(getConfigurationManager());
+		executor.scheduleWithFixedDelay(purgeTask, purgeInterval, purgeInterval, TimeUnit.SECONDS);
+
+		int adjustInterval = Math.max(1, configuration.getAsyncAdjustInterval());
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				adjustConcurrency();
+			}
+		}, adjustInterval, adjustInterval, TimeUnit.SECONDS);
+
+		startDelay = configuration.getAsyncPollingPeriod();
+		concurrencyController.reset();
+		configureRoutes(configuration);
+		resize(getTargetSize(configuration));
+		Context.getAdministrationService().addGlobalPropertyListener(this);
+	}
+
+	/**
+	 * Changes the number of processors for documents that aren't routed to a named pool, does nothing
+	 * if the pool isn't running
+	 *
+	 * @param size - the number of processors to run
+	 */
+	public synchronized void resize(int size) {
+		if (executor == null) {
+			return;
+		}
+
+		size = Math.max(0, size);
+		if (size != processors.size()) {
+			log.info("Resizing the discrete data worker pool from " + processors.size() + " to " + size + " processors");
+			resizeGroup(processors, size, defaultRoute);
+		}
+	}
+
+	/**
+	 * Sets up the named processor pools and the route of the other processors
+	 */
+	private synchronized void configureRoutes(XDSbRepositoryConfiguration configuration) {
+		Map<String, QueueRoute> routes = new LinkedHashMap<String, QueueRoute>();
+		Set<String> routedCodes = new HashSet<String>();
+		// the named pools are removed along with the other processors when async processing is disabled
+		List<QueueRoute> configuredRoutes = configuration.isDiscreteHandlerAsync() ? configuration.getAsyncRoutes()
+				: new ArrayList<QueueRoute>();
+		for (QueueRoute route : configuredRoutes) {
+			routes.put(route.getName(), route);
+			routedCodes.addAll(route.getCodes());
+		}
+
+		Iterator<Map.Entry<String, List<DiscreteDataProcessorTask>>> groups = namedProcessors.entrySet().iterator();
+		while (groups.hasNext()) {
+			Map.Entry<String, List<DiscreteDataProcessorTask>> group = groups.next();
+			if (!routes.containsKey(group.getKey())) {
+				log.info("Removing the " + group.getKey() + " discrete data processor pool");
+				resizeGroup(group.getValue(), 0, null);
+				groups.remove();
+			}
+		}
+		for (QueueRoute route : routes.values()) {
+			List<DiscreteDataProcessorTask> group = namedProcessors.get(route.getName());
+			if (group == null) {
+				group = new ArrayList<DiscreteDataProcessorTask>();
+				namedProcessors.put(route.getName(), group);
+			}
+			if (group.size() != route.getSize()) {
+				log.info("Resizing the " + route + " discrete data processor pool from " + group.size() + " to "
+						+ route.getSize() + " processors");
+			}
+			for (DiscreteDataProcessorTask processor : group) {
+				processor.setRoute(route);
+			}
+			resizeGroup(group, route.getSize(), route);
+		}
+
+		defaultRoute = routedCodes.isEmpty() ? null : QueueRoute.defaultRoute(routedCodes);
+		for (DiscreteDataProcessorTask processor : processors) {
+			processor.setRoute(defaultRoute);
+		}
+		// idle processors look for work on their new route
+		getQueueSignal().wakeAll();
+	}
+
+	/**
+	 * Starts or stops processors of a group until it has the given number
+	 */
+	private void resizeGroup(List<DiscreteDataProcessorTask> group, int size, QueueRoute route) {
+		// each processor runs until it is stopped, so it needs a thread of its own
+		executor.setCorePoolSize(MAINTENANCE_THREADS + getProcessorCount() + Math.max(0, size - group.size()));
+		while (group.size() < size) {
+			DiscreteDataProcessorTask processor = new DiscreteDataProcessorTask(getConfigurationManager(), getQueueSignal(),
+					route == null || route.isExcluding() ? concurrencyController : null);
+			processor.setRoute(route);
+			group.add(processor);
+			executor.schedule(processor, startDelay, TimeUnit.MILLISECONDS);
+		}
+		if (group.size() > size) {
+			while (group.size() > size) {
+				group.remove(group.size() - 1).stop();
+			}
+			executor.setCorePoolSize(MAINTENANCE_THREADS + getProcessorCount());
+			// wake idle processors so that the stopped ones see it
+			getQueueSignal().wakeAll();
+		}
+	}
+
+	private int getProcessorCount() {
+		int count = processors.size();
+		for (List<DiscreteDataProcessorTask> group : namedProcessors.values()) {
+			count += group.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of processors to run for the configuration, none if asynchronous processing
+	 * is disabled. When the number is adaptive the current number is kept within the configured
+	 * bounds and the pool starts with the fewest
+	 */
+	private synchronized int getTargetSize(XDSbRepositoryConfiguration configuration) {
+		if (!configuration.isDiscreteHandlerAsync()) {
+			return 0;
+		}
+		if (!configuration.isAsyncAdaptiveConcurrency()) {
+			return configuration.getAsyncMaxTasks();
+		}
+		int min = Math.max(1, configuration.getAsyncMinTasks());
+		int max = Math.max(min, configuration.getAsyncMaxTasks());
+		return Math.max(min, Math.min(max, processors.isEmpty() ? min : processors.size()));
+	}
+
+	/**
+	 * Lets the concurrency controller pick the number of processors, if it is enabled
+	 */
+	protected void adjustConcurrency() {
+		XDSbRepositoryConfiguration configuration = getConfigurationManager().getConfiguration();
+		if (stopping || !configuration.isDiscreteHandlerAsync() || !configuration.isAsyncAdaptiveConcurrency()) {
+			concurrencyController.reset();
+			return;
+		}
+
+		try {
+			Utils.startSession(configuration);
+			long queueDepth = Context.getService(XDSbService.class).getQueueDepth();
+			synchronized (this) {
+				resize(concurrencyController.adjust(processors.size(), queueDepth, configuration.getAsyncMinTasks(),
+						configuration.getAsyncMaxTasks(), configuration.getAsyncTargetLatency()));
+			}
+		} catch (Exception e) {
+			// an exception would cancel the scheduled task
+			log.error("Error adjusting the number of discrete data processors", e);
+		} finally {
+			Context.closeSession();
+		}
+	}
+
+	/**
+	 * @return the number of processors the pool is running for documents that aren't routed to a named pool
+	 */
+	public synchronized int getSize() {
+		return processors.size();
+	}
+
+	/**
+	 * Stops claiming queue items and waits for the items being processed to finish. Claimed items
+	 * that weren't started are handed back to the queue by their processors, items still being
+	 * processed when the wait times out are returned to the queue by the reaper once their lease
+	 * expires. The wait happens outside the pool's lock so that a slow processor doesn't hold up
+	 * anything else that needs the pool.
+	 */
+	public void drain() {
+		ScheduledThreadPoolExecutor draining;
+		synchronized (this) {
+			if (executor == null) {
+				return;
+			}
+
+			stopping = true;
+			Context.getAdministrationService().removeGlobalPropertyListener(this);
+			for (DiscreteDataProcessorTask processor : processors) {
+				processor.stop();
+			}
+			processors.clear();
+			for (List<DiscreteDataProcessorTask> group : namedProcessors.values()) {
+				for (DiscreteDataProcessorTask processor : group) {
+					processor.stop();
+				}
+			}
+			namedProcessors.clear();
+			purgeTask.stop();
+			purgeTask = null;
+			// wake idle processors so that they see they have been stopped
+			getQueueSignal().wakeAll();
+
+			draining = executor;
+			draining.shutdown();
+			executor = null;
+		}
+
+		try {
+			if (!draining.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.error("Timeout waiting for discrete data processor tasks to terminate before module shutdown.");
+				// interrupted processors release the items they claimed but didn't start
+				draining.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			draining.shutdownNow();
+		}
+	}
+
+	/**
+	 * @see GlobalPropertyListener#supportsPropertyName(String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC.equals(propertyName)
+				|| XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS.equals(propertyName)
+				|| XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_MIN_TASKS.equals(propertyName)
+				|| XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ADAPTIVE_CONCURRENCY.equals(propertyName)
+				|| XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_POOLS.equals(propertyName);
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		// the configuration manager may not have seen the change yet
+		applyConfiguration(getConfigurationManager().getConfiguration()
+				.with(newValue.getProperty(), newValue.getPropertyValue()));
+	}
+
+	/**
+	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		applyConfiguration(getConfigurationManager().getConfiguration().without(propertyName));
+	}
+
+	private synchronized void applyConfiguration(XDSbRepositoryConfiguration configuration) {
+		if (executor == null) {
+			return;
+		}
+		configureRoutes(configuration);
+		resize(getTargetSize(configuration));
+	}
+
+	protected ConfigurationManager getConfigurationManager() {
+		if (configurationManager == null) {
+			configurationManager = Utils.getConfigurationManager();
+		}
+		return configurationManager;
+	}
+
+	protected QueueSignal getQueueSignal() {
+		if (queueSignal == null) {
+			queueSignal = Utils.getQueueSignal();
+		}
+		return queueSignal;
+	}
+
+	/**
+	 * Names the pool's threads so that they can be told apart in thread dumps
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "xdsbrepository-discrete-worker-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,184 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dcm4chee.xds2.common.exception.XDSException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds back Provide and Register submissions while the discrete data processors are falling
+ * behind, so that the queue can't grow until the database suffers for everyone.
+ * <p/>
+ * The queue is over its high watermark when the number of due items or the time the oldest live
+ * item that could be claimed has been due reaches its high value, and it stays over until both are
+ * back below their low values.
+ * The gap between the two stops submissions from flapping between held back and accepted. While
+ * the queue is over, the configured {@link Policy} applies. The queue is sampled at most once per
+ * {@link #SAMPLE_INTERVAL_MILLIS} so that busy submitters don't add to the load on the queue table.
+ */
+public class QueueBackpressure {
+
+	/**
+	 * What happens to a submission while the queue is over its high watermark
+	 */
+	public enum Policy {
+		/** accept it */
+		NONE,
+		/** wait until the queue is back below its low watermark, rejecting it if that takes too long */
+		DELAY,
+		/** reject it straight away */
+		REJECT
+	}
+
+	public static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	@Autowired
+	@Qualifier("xdsbrepository.configurationManager")
+	private ConfigurationManager configurationManager;
+
+	private volatile boolean overWatermark;
+
+	private final AtomicLong nextSampleAt = new AtomicLong();
+
+	private final AtomicLong delayedCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Admits a submission, waiting first if the policy is DELAY and the queue is over its high watermark
+	 *
+	 * @throws XDSException with the XDSRepositoryBusy error code if the submission is rejected
+	 */
+	public void admit() throws XDSException {
+		XDSbRepositoryConfiguration configuration = getConfiguration();
+		if (!configuration.isDiscreteHandlerAsync()) {
+			return;
+		}
+		Policy policy = parsePolicy(configuration.getAsyncBackpressurePolicy());
+		if (policy == Policy.NONE || !isOverWatermark(configuration)) {
+			return;
+		}
+
+		if (policy == Policy.DELAY) {
+			delayedCount.incrementAndGet();
+			long deadline = System.currentTimeMillis() + configuration.getAsyncBackpressureMaxDelay();
+			try {
+				for (long remaining = deadline - System.currentTimeMillis(); remaining > 0;
+						remaining = deadline - System.currentTimeMillis()) {
+					Thread.sleep(Math.min(SAMPLE_INTERVAL_MILLIS, remaining));
+					if (!isOverWatermark(configuration)) {
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		rejectedCount.incrementAndGet();
+		throw new XDSException(XDSbServiceConstants.ERROR_XDS_REPOSITORY_BUSY,
+				"The repository is busy processing earlier submissions, please try again later", null);
+	}
+
+	/**
+	 * @return true if submissions are being held back, sampling the queue if the last sample is out of date
+	 */
+	public boolean isOverWatermark(XDSbRepositoryConfiguration configuration) {
+		long now = System.currentTimeMillis();
+		long due = nextSampleAt.get();
+		// only one submission samples the queue, the others use the last sample
+		if (now >= due && nextSampleAt.compareAndSet(due, now + SAMPLE_INTERVAL_MILLIS)) {
+			long depth;
+			long ageSeconds;
+			try {
+				depth = getQueueDepth();
+				Date oldest = getOldestDueQueueItemDate();
+				ageSeconds = oldest == null ? 0 : Math.max(0, (now - oldest.getTime()) / 1000);
+			} catch (RuntimeException e) {
+				// the submission goes ahead on the last sample, the queue is sampled again next time
+				log.warn("Could not sample the queue, keeping the last sample", e);
+				return overWatermark;
+			}
+
+			boolean over = isOverWatermark(overWatermark, depth, ageSeconds, configuration);
+			if (over != overWatermark) {
+				log.warn((over ? "Holding back submissions, " : "Accepting submissions again, ") + depth
+						+ " queue items are due and the oldest live item has been due for " + ageSeconds + " seconds");
+			}
+			overWatermark = over;
+		}
+		return overWatermark;
+	}
+
+	/**
+	 * @param wasOver - whether the queue was over its high watermark at the last sample
+	 * @param depth - the number of due queue items
+	 * @param ageSeconds - how long the oldest live item that could be claimed has been due
+	 * @return whether the queue is over its high watermark now
+	 */
+	static boolean isOverWatermark(boolean wasOver, long depth, long ageSeconds, XDSbRepositoryConfiguration configuration) {
+		long highDepth = configuration.getAsyncHighQueueDepth();
+		long highAge = configuration.getAsyncHighQueueAge();
+		if (wasOver) {
+			boolean depthLow = highDepth <= 0 || depth < configuration.getAsyncLowQueueDepth();
+			boolean ageLow = highAge <= 0 || ageSeconds < configuration.getAsyncLowQueueAge();
+			return !(depthLow && ageLow);
+		}
+		return (highDepth > 0 && depth >= highDepth) || (highAge > 0 && ageSeconds >= highAge);
+	}
+
+	/**
+	 * @return the number of submissions that had to wait
+	 */
+	public long getDelayedCount() {
+		return delayedCount.get();
+	}
+
+	/**
+	 * @return the number of submissions that were rejected
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	protected long getQueueDepth() {
+		return Context.getService(XDSbService.class).getQueueDepth();
+	}
+
+	protected Date getOldestDueQueueItemDate() {
+		return Context.getService(XDSbService.class).getOldestDueQueueItemDate();
+	}
+
+	protected XDSbRepositoryConfiguration getConfiguration() {
+		return getConfigurationManager().getConfiguration();
+	}
+
+	protected ConfigurationManager getConfigurationManager() {
+		if (configurationManager == null) {
+			configurationManager = Utils.getConfigurationManager();
+		}
+		return configurationManager;
+	}
+
+	private Policy parsePolicy(String value) {
+		try {
+			return Policy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown backpressure policy " + value + ", using " + Policy.NONE);
+			return Policy.NONE;
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects the queue items a group of discrete data processors claims, by the type and format codes
+ * of their documents. A named route claims the items whose type or format code is one of its codes,
+ * the default route claims the items that no named route claims.
+ */
+public class QueueRoute {
+
+	public static final String DEFAULT_NAME = "default";
+
+	private final String name;
+
+	private final int size;
+
+	private final Set<String> codes;
+
+	private final boolean excluding;
+
+	private QueueRoute(String name, int size, Set<String> codes, boolean excluding) {
+		this.name = name;
+		this.size = size;
+		this.codes = Collections.unmodifiableSet(new HashSet<String>(codes));
+		this.excluding = excluding;
+	}
+
+	/**
+	 * @param name - the name of the processor group
+	 * @param size - the number of processors in the group
+	 * @param codes - the type and format codes of the documents the group processes
+	 * @return a route claiming documents with one of the codes
+	 */
+	public static QueueRoute named(String name, int size, Set<String> codes) {
+		return new QueueRoute(name, size, codes, false);
+	}
+
+	/**
+	 * @param routedCodes - the codes of every named route
+	 * @return a route claiming documents with none of the codes
+	 */
+	public static QueueRoute defaultRoute(Set<String> routedCodes) {
+		return new QueueRoute(DEFAULT_NAME, 0, routedCodes, true);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of processors in a named route's group
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	public Set<String> getCodes() {
+		return codes;
+	}
+
+	/**
+	 * @return true if the route claims documents with none of its codes rather than one of them
+	 */
+	public boolean isExcluding() {
+		return excluding;
+	}
+
+	@Override
+	public String toString() {
+		return name + (excluding ? " (not " : " (") + codes + ")";
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wakes idle discrete data processors when new work is committed to the queue on this node, so
+ * that they don't have to poll the queue table to pick it up quickly.
+ * <p/>
+ * Every signal moves the signal on to a new generation. A processor reads the generation before
+ * it looks for work and waits for a later one, so a signal that arrives between finding the
+ * queue empty and starting to wait is not lost.
+ */
+public class QueueSignal {
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition workAvailable = lock.newCondition();
+
+	private long generation;
+
+	/**
+	 * @return the current generation, to be passed to {@link #awaitWork(long, long)}
+	 */
+	public long getGeneration() {
+		lock.lock();
+		try {
+			return generation;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes one waiting processor as an item has been queued
+	 */
+	public void signalWork() {
+		lock.lock();
+		try {
+			generation++;
+			workAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes every waiting processor, e.g. so that they notice they have been stopped
+	 */
+	public void wakeAll() {
+		lock.lock();
+		try {
+			generation++;
+			workAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the signal has moved past the given generation or the timeout expires
+	 *
+	 * @param seenGeneration - the generation read before looking for work
+	 * @param timeoutMillis - the longest time to wait for
+	 * @return true if signalled, false if the timeout expired
+	 */
+	public boolean awaitWork(long seenGeneration, long timeoutMillis) throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (generation == seenGeneration) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = workAvailable.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
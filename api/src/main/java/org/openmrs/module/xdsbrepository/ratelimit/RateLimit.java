@@ -0,0 +1,74 @@
+package org.openmrs.module.xdsbrepository.ratelimit;
+
+/**
+ * The rate a source may submit at, as a token bucket: the bucket holds up to burst tokens and is
+ * refilled at perSecond tokens a second, each submission takes a token.
+ */
+public class RateLimit {
+
+	public static final RateLimit UNLIMITED = new RateLimit(0, 0);
+
+	private final double perSecond;
+
+	private final int burst;
+
+	public RateLimit(double perSecond, int burst) {
+		this.perSecond = perSecond;
+		this.burst = burst;
+	}
+
+	/**
+	 * Parses a limit written as rate or rate/burst, the burst defaults to the rate rounded up
+	 *
+	 * @return the limit, {@link #UNLIMITED} if the rate is 0 or less
+	 * @throws NumberFormatException if the value isn't a valid limit
+	 */
+	public static RateLimit parse(String value) {
+		String[] parts = value.trim().split("/");
+		if (parts.length > 2) {
+			throw new NumberFormatException("Expected rate or rate/burst but was " + value);
+		}
+		double perSecond = Double.parseDouble(parts[0].trim());
+		if (perSecond <= 0) {
+			return UNLIMITED;
+		}
+		int burst = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : (int) Math.ceil(perSecond);
+		return new RateLimit(perSecond, Math.max(1, burst));
+	}
+
+	public double getPerSecond() {
+		return perSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	public boolean isUnlimited() {
+		return perSecond <= 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof RateLimit)) {
+			return false;
+		}
+		RateLimit other = (RateLimit) o;
+		return Double.compare(perSecond, other.perSecond) == 0 && burst == other.burst;
+	}
+
+	@Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(perSecond);
+		return 31 * (int) (bits ^ (bits >>> 32)) + burst;
+	}
+
+	@Override
+	public String toString() {
+		return isUnlimited() ? "unlimited" : perSecond + "/" + burst;
+	}
+
+}
@@ -0,0 +1,230 @@
+package org.openmrs.module.xdsbrepository.ratelimit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Limits the rate each source may submit at, so that one misbehaving system can't flood the
+ * repository. Sources are told apart by the submission set source id and each has a token bucket
+ * with the source's own {@link RateLimit} or the default one.
+ * <p/>
+ * Nothing is locked: the buckets are kept in a concurrent map and a bucket's tokens are updated by
+ * compare and set, so submissions from different sources never wait for each other. The limits are
+ * parsed again only when the configuration changes.
+ * <p/>
+ * A bucket that has refilled is no different from a new one, so buckets that have been idle for
+ * long enough to refill are evicted every minute. The throttled counts are kept for a bounded
+ * number of sources, submissions from any further sources are counted together.
+ */
+public class SourceRateLimiter {
+
+	/** the key throttled submissions are counted under once MAX_COUNTED_SOURCES sources have been counted */
+	public static final String OTHER_SOURCES = "*";
+
+	private static final int MAX_COUNTED_SOURCES = 1000;
+	private static final long EVICTION_INTERVAL_NANOS = 60 * 1000000000L;
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	@Autowired
+	@Qualifier("xdsbrepository.configurationManager")
+	private ConfigurationManager configurationManager;
+
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	private final ConcurrentMap<String, AtomicLong> throttledCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final AtomicReference<Limits> limits = new AtomicReference<Limits>();
+
+	private final AtomicLong nextEvictionNanos = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * The parsed limits of a configuration snapshot
+	 */
+	private static class Limits {
+		final XDSbRepositoryConfiguration configuration;
+		final RateLimit defaultLimit;
+		final Map<String, RateLimit> sourceLimits;
+
+		Limits(XDSbRepositoryConfiguration configuration) {
+			this.configuration = configuration;
+			this.defaultLimit = configuration.getRateLimitDefault();
+			this.sourceLimits = configuration.getRateLimitSources();
+		}
+
+		RateLimit get(String sourceId) {
+			RateLimit limit = sourceLimits.get(sourceId);
+			return limit != null ? limit : defaultLimit;
+		}
+	}
+
+	/**
+	 * The tokens of a bucket at a point in time, replaced as a whole
+	 */
+	private static class State {
+		final double tokens;
+		final long nanos;
+
+		State(double tokens, long nanos) {
+			this.tokens = tokens;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * A token bucket for one source
+	 */
+	private static class Bucket {
+		final RateLimit limit;
+		final AtomicReference<State> state;
+
+		Bucket(RateLimit limit, long nanos) {
+			this.limit = limit;
+			this.state = new AtomicReference<State>(new State(limit.getBurst(), nanos));
+		}
+
+		/**
+		 * @return true if a token was taken, false if the bucket is empty
+		 */
+		boolean tryTake(long nanos) {
+			while (true) {
+				State current = state.get();
+				double elapsedSeconds = Math.max(0, nanos - current.nanos) / 1e9;
+				double tokens = Math.min(limit.getBurst(), current.tokens + elapsedSeconds * limit.getPerSecond());
+				if (tokens < 1) {
+					return false;
+				}
+				if (state.compareAndSet(current, new State(tokens - 1, Math.max(nanos, current.nanos)))) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return true if the bucket will have refilled by the given time
+		 */
+		boolean isFull(long nanos) {
+			State current = state.get();
+			double elapsedSeconds = Math.max(0, nanos - current.nanos) / 1e9;
+			return current.tokens + elapsedSeconds * limit.getPerSecond() >= limit.getBurst();
+		}
+	}
+
+	/**
+	 * Takes a token for a submission from the source
+	 *
+	 * @param sourceId - the submission set source id, submissions without one share a bucket
+	 * @return true if the submission may go ahead, false if the source is over its limit
+	 */
+	public boolean tryAcquire(String sourceId) {
+		String key = sourceId == null ? "" : sourceId.trim();
+		RateLimit limit = getLimits().get(key);
+		if (limit.isUnlimited()) {
+			return true;
+		}
+
+		long now = nanoTime();
+		evictIdleBuckets(now);
+		Bucket bucket = buckets.get(key);
+		if (bucket == null || !bucket.limit.equals(limit)) {
+			// a new source or its limit has changed, start it with a full bucket
+			Bucket fresh = new Bucket(limit, now);
+			if (bucket == null) {
+				Bucket existing = buckets.putIfAbsent(key, fresh);
+				bucket = existing != null ? existing : fresh;
+			} else {
+				bucket = buckets.replace(key, bucket, fresh) ? fresh : buckets.get(key);
+			}
+		}
+
+		if (bucket.tryTake(now)) {
+			return true;
+		}
+		AtomicLong count = throttledCounts.get(key);
+		if (count == null) {
+			String countKey = throttledCounts.size() < MAX_COUNTED_SOURCES ? key : OTHER_SOURCES;
+			AtomicLong fresh = new AtomicLong();
+			count = throttledCounts.putIfAbsent(countKey, fresh);
+			if (count == null) {
+				count = fresh;
+			}
+		}
+		if (count.incrementAndGet() == 1) {
+			log.warn("Throttling submissions from source " + key + ", it is over its rate limit of " + limit);
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the buckets that have refilled, at most once per eviction interval
+	 */
+	private void evictIdleBuckets(long now) {
+		long next = nextEvictionNanos.get();
+		if ((next != Long.MIN_VALUE && now - next < 0) || !nextEvictionNanos.compareAndSet(next, now + EVICTION_INTERVAL_NANOS)) {
+			return;
+		}
+		for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+			if (entry.getValue().isFull(now)) {
+				// only removed if it hasn't been replaced in the meantime
+				buckets.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return the number of sources with a bucket
+	 */
+	public int getBucketCount() {
+		return buckets.size();
+	}
+
+	/**
+	 * @return the number of throttled submissions by source id
+	 */
+	public Map<String, Long> getThrottledCounts() {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : throttledCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	protected XDSbRepositoryConfiguration getConfiguration() {
+		return getConfigurationManager().getConfiguration();
+	}
+
+	protected ConfigurationManager getConfigurationManager() {
+		if (configurationManager == null) {
+			configurationManager = Utils.getConfigurationManager();
+		}
+		return configurationManager;
+	}
+
+	private Limits getLimits() {
+		XDSbRepositoryConfiguration configuration = getConfiguration();
+		Limits current = limits.get();
+		if (current == null || current.configuration != configuration) {
+			current = new Limits(configuration);
+			limits.set(current);
+		}
+		return current;
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.openmrs.module.xdsbrepository.session;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+
+/**
+ * Re-uses an authenticated {@link UserContext} for the configured web service user instead of
+ * calling {@link Context#authenticate(String, String)} for every request and queue poll, which
+ * involves a user lookup and a deliberately slow password hash.
+ * <p/>
+ * A context is kept per thread (container request threads and the discrete data workers are
+ * pooled) so that the mutable state of a UserContext is never shared between threads. A context
+ * is re-authenticated once it is older than the configured timeout or when the credentials in
+ * the module configuration change. Expiry is purely time based, changes made to the user itself
+ * (roles, privileges, retiring it) are seen by a thread once its cached context has timed out.
+ */
+public class ServiceSessionManager {
+
+	private static final int CONTEXT = 0;
+	private static final int CREDENTIALS = 1;
+	private static final int EXPIRES_AT = 2;
+
+	// only JDK and core classes are held by the thread local so that a module reload doesn't leak
+	private final ThreadLocal<Object[]> cachedContexts = new ThreadLocal<Object[]>();
+
+	/**
+	 * Authenticates the current thread's session as the configured web service user, re-using
+	 * a previously authenticated context where possible. A session must already be open.
+	 */
+	public void attach(XDSbRepositoryConfiguration configuration) {
+		String username = configuration.getWsUsername();
+		String password = configuration.getWsPassword();
+		String credentials = username + "\n" + password;
+		long now = System.currentTimeMillis();
+
+		Object[] cached = cachedContexts.get();
+		if (cached != null && credentials.equals(cached[CREDENTIALS]) && (Long) cached[EXPIRES_AT] > now) {
+			Context.setUserContext((UserContext) cached[CONTEXT]);
+			return;
+		}
+
+		Context.authenticate(username, password);
+		long timeout = configuration.getWsSessionTimeout() * 1000L;
+		cachedContexts.set(new Object[] { Context.getUserContext(), credentials, now + timeout });
+	}
+
+}
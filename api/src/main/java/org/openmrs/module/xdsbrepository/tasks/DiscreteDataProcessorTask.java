@@ -16,42 +16,239 @@ import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
 import org.openmrs.module.xdsbrepository.Utils;
 import org.openmrs.module.xdsbrepository.XDSbService;
-import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.cache.ContentHandoffCache;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
 import org.openmrs.module.xdsbrepository.exceptions.HydrateRoleProviderMapException;
+import org.openmrs.module.xdsbrepository.exceptions.QueueItemLeaseLostException;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.model.QueueItemProvider;
+import org.openmrs.module.xdsbrepository.queue.ConcurrencyController;
+import org.openmrs.module.xdsbrepository.queue.QueueRoute;
+import org.openmrs.module.xdsbrepository.queue.QueueSignal;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
+/**
+ * Processes the discrete data queue until it is stopped. The queue is drained continuously while
+ * there is work, when it is empty the task waits to be signalled that work has been queued on this
+ * node, or for the idle polling period to pass so that work queued on other nodes is picked up.
+ */
 public class DiscreteDataProcessorTask implements Runnable {
 
-    private static final Object lock = new Object();
-
     private Log log = LogFactory.getLog(DiscreteDataProcessorTask.class);
 
+    private ConfigurationManager configurationManager;
+
+    private QueueSignal queueSignal;
+
+    private TransactionTemplate transactionTemplate;
+
+    private ContentHandoffCache contentHandoffCache;
+
+    private ConcurrencyController concurrencyController;
+
+    private volatile QueueRoute route;
+
+    private volatile boolean running = true;
+
+    // the queue items this processor claims are recorded with this owner, so that they can't be taken for
+    // the items of an earlier processor that ran on a thread with the same name
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+
+    public DiscreteDataProcessorTask() {
+    }
+
+    public DiscreteDataProcessorTask(ConfigurationManager configurationManager, QueueSignal queueSignal) {
+        this.configurationManager = configurationManager;
+        this.queueSignal = queueSignal;
+    }
+
+    public DiscreteDataProcessorTask(ConfigurationManager configurationManager, QueueSignal queueSignal,
+                                     ConcurrencyController concurrencyController) {
+        this(configurationManager, queueSignal);
+        this.concurrencyController = concurrencyController;
+    }
+
     @Override
     public void run() {
-        XDSbService service = Context.getService(XDSbService.class);
-        Utils.startSession();
+        while (running && !Thread.currentThread().isInterrupted()) {
+            long generation = getQueueSignal().getGeneration();
+            int processed = 0;
+            try {
+                processed = processNextBatch();
+            } catch (Exception e) {
+                // an exception would end the processor
+                log.error("Error claiming discrete data queue items for processing", e);
+                if (concurrencyController != null) {
+                    concurrencyController.recordClaimFailure(e);
+                }
+            }
 
-        QueueItem currentQueueItem;
-        // ensure that tasks don't dequeue the same queue item
-        synchronized (lock) {
-            currentQueueItem = service.dequeueNextDiscreteDataForProcessing();
+            if (processed == 0 && running) {
+                try {
+                    getQueueSignal().awaitWork(generation, getConfigurationManager().getConfiguration().getAsyncIdlePollPeriod());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
-        if (currentQueueItem != null) {
+    }
+
+    /**
+     * @param route - selects the queue items this task claims, null claims any item
+     */
+    public void setRoute(QueueRoute route) {
+        this.route = route;
+    }
+
+    public QueueRoute getRoute() {
+        return route;
+    }
+
+    /**
+     * Stops the task once it has finished the queue item it is processing, the rest of its batch is
+     * released back to the queue
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Claims and processes the next batch of queue items. The batch shares one session, each item
+     * is processed in its own transaction and the session is cleared between items so that it
+     * doesn't grow with the batch. An item's lease is renewed by the transaction that processes it,
+     * so the lease covers processing the item and not the time it spent waiting behind the rest of
+     * the batch. If the task is stopped or interrupted part way through the batch the items that
+     * weren't started are released.
+     *
+     * @return the number of queue items that were claimed
+     */
+    public int processNextBatch() {
+        XDSbRepositoryConfiguration configuration = getConfigurationManager().getConfiguration();
+        Utils.startSession(configuration);
+        try {
+            XDSbService service = Context.getService(XDSbService.class);
+
+            // claiming is atomic in the database so tasks (on this or other nodes) can't dequeue the same queue item
+            List<QueueItem> claimedQueueItems = service.dequeueDiscreteDataForProcessing(Math.max(1, configuration.getAsyncClaimBatchSize()), route, owner);
+            List<Integer> claimedIds = new ArrayList<Integer>(claimedQueueItems.size());
+            for (QueueItem queueItem : claimedQueueItems) {
+                claimedIds.add(queueItem.getId());
+            }
+            Context.clearSession();
+
+            int startedCount = 0;
             try {
-                processQueueItem(currentQueueItem);
-                service.completeQueueItem(currentQueueItem, true);
-            } catch (Exception e) {
-                log.error("Error processing discrete data asynchronously for queue item "
-                        + currentQueueItem.getId() + " for documentUniqueId " + currentQueueItem.getDocUniqueId(), e);
-                if (currentQueueItem != null) {
-                    service.completeQueueItem(currentQueueItem, false);
+                for (Integer id : claimedIds) {
+                    if (!running) {
+                        // stopped, hand the rest of the batch to another processor
+                        break;
+                    }
+                    startedCount++;
+                    long started = System.currentTimeMillis();
+                    Exception failure = processQueueItemInTransaction(service, id);
+                    Context.clearSession();
+                    if (failure instanceof QueueItemLeaseLostException) {
+                        log.warn(failure.getMessage() + ", it is left to the worker that has it now");
+                        continue;
+                    }
+                    recordOutcome(System.currentTimeMillis() - started, failure);
+                    if (failure != null) {
+                        QueueItem currentQueueItem = service.getQueueItem(id);
+                        if (currentQueueItem == null) {
+                            log.error("Error processing discrete data asynchronously for queue item " + id, failure);
+                            continue;
+                        }
+                        log.error("Error processing discrete data asynchronously for queue item "
+                                + id + " for documentUniqueId " + currentQueueItem.getDocUniqueId(), failure);
+                        service.failQueueItem(currentQueueItem, failure.getClass().getName() + ": " + failure.getMessage(), owner);
+                        Context.clearSession();
+                    }
                 }
+            } finally {
+                // the items that weren't started go back on the queue straight away, also when the task
+                // was interrupted, rather than waiting for their lease to expire
+                releaseUnstarted(service, claimedIds.subList(startedCount, claimedIds.size()));
             }
+            return claimedIds.size();
+        } finally {
+            Context.closeSession();
+        }
+    }
+
+    private void releaseUnstarted(XDSbService service, List<Integer> ids) {
+        try {
+            service.releaseQueueItems(ids, owner);
+        } catch (RuntimeException e) {
+            log.error("Error releasing " + ids.size() + " discrete data queue items, they are requeued when their lease expires", e);
+        }
+    }
+
+    /**
+     * Processes a queue item in a new transaction, a failure rolls back only this item's changes. The
+     * transaction starts by renewing the item's lease, the batch was leased when it was claimed and
+     * the item gets a full lease from now. The item is marked as complete in the same transaction, so
+     * its discrete data and its completion are committed together and a crash can't leave processed
+     * data with an item that will run again.
+     *
+     * @return the reason processing failed, a {@link QueueItemLeaseLostException} if the item is no longer
+     * claimed by this processor, or null if it succeeded
+     */
+    protected Exception processQueueItemInTransaction(final XDSbService service, final Integer queueItemId) {
+        try {
+            return getTransactionTemplate().execute(new TransactionCallback<Exception>() {
+                @Override
+                public Exception doInTransaction(TransactionStatus status) {
+                    try {
+                        if (!service.extendQueueItemLease(queueItemId, owner)) {
+                            status.setRollbackOnly();
+                            return new QueueItemLeaseLostException("The lease on discrete data queue item " + queueItemId
+                                    + " expired before it was started");
+                        }
+                        processQueueItem(service.getQueueItem(queueItemId));
+                        if (service.completeQueueItems(Collections.singletonList(queueItemId), owner) == 0) {
+                            // the lease expired and the item may be processed by another worker
+                            status.setRollbackOnly();
+                            return new QueueItemLeaseLostException("Queue item " + queueItemId + " is no longer claimed by this worker");
+                        }
+                        return null;
+                    } catch (Exception e) {
+                        status.setRollbackOnly();
+                        return e;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // the commit failed
+            return e;
+        }
+    }
+
+    /**
+     * Lets the concurrency controller, if there is one, know how processing an item went
+     */
+    private void recordOutcome(long latencyMillis, Exception failure) {
+        if (concurrencyController == null) {
+            return;
+        }
+        if (failure == null) {
+            concurrencyController.recordSuccess(latencyMillis);
+        } else {
+            concurrencyController.recordFailure(latencyMillis, failure);
         }
     }
 
@@ -59,20 +256,100 @@ public class DiscreteDataProcessorTask implements Runnable {
         ContentHandlerService chs = Context.getService(ContentHandlerService.class);
         ContentHandler defaultHandler = chs.getDefaultUnstructuredHandler();
 
-        // fetch content object from unstructured handler
-        Content content = defaultHandler.fetchContent(queueItem.getDocUniqueId());
+        // use the content handed over when it was stored, else fetch it from the unstructured handler
+        Content content = getContentHandoffCache().take(queueItem.getDocUniqueId());
+        if (content == null) {
+            content = defaultHandler.fetchContent(queueItem.getDocUniqueId());
+        }
         ContentHandler discreteHandler = chs.getContentHandler(content.getTypeCode(), content.getFormatCode());
 
         // get metadata objects
         Patient patient = queueItem.getPatient();
         EncounterType encounterType = queueItem.getEncounterType();
-        String roleProviderMap = queueItem.getRoleProviderMap();
-        Map<EncounterRole, Set<Provider>> providersByRole = hydrateRoleProviderMap(roleProviderMap);
+        Map<EncounterRole, Set<Provider>> providersByRole;
+        if (queueItem.getProviders().isEmpty() && queueItem.getRoleProviderMap() != null) {
+            // queued before the providers were kept in their own table
+            providersByRole = hydrateRoleProviderMap(queueItem.getRoleProviderMap());
+        } else {
+            providersByRole = hydrateProviders(queueItem.getProviders());
+        }
 
         // attempt discrete save
         discreteHandler.saveContent(patient, providersByRole, encounterType, content, null);
     }
 
+    protected TransactionTemplate getTransactionTemplate() {
+        if (transactionTemplate == null) {
+            transactionTemplate = new TransactionTemplate(
+                    Context.getRegisteredComponent("transactionManager", PlatformTransactionManager.class));
+        }
+        return transactionTemplate;
+    }
+
+    protected QueueSignal getQueueSignal() {
+        if (queueSignal == null) {
+            queueSignal = Utils.getQueueSignal();
+        }
+        return queueSignal;
+    }
+
+    protected ContentHandoffCache getContentHandoffCache() {
+        if (contentHandoffCache == null) {
+            contentHandoffCache = Utils.getContentHandoffCache();
+        }
+        return contentHandoffCache;
+    }
+
+    protected ConfigurationManager getConfigurationManager() {
+        if (configurationManager == null) {
+            configurationManager = Utils.getConfigurationManager();
+        }
+        return configurationManager;
+    }
+
+    /**
+     * Loads a queue item's providers and their roles, with one query for the providers and one for
+     * the roles however many there are
+     */
+    protected Map<EncounterRole, Set<Provider>> hydrateProviders(Collection<QueueItemProvider> queueItemProviders) throws HydrateRoleProviderMapException {
+        Set<Integer> providerIds = new HashSet<Integer>();
+        Set<Integer> roleIds = new HashSet<Integer>();
+        for (QueueItemProvider queueItemProvider : queueItemProviders) {
+            providerIds.add(queueItemProvider.getProviderId());
+            roleIds.add(queueItemProvider.getEncounterRoleId());
+        }
+
+        XDSbService service = Context.getService(XDSbService.class);
+        Map<Integer, Provider> providers = new HashMap<Integer, Provider>();
+        for (Provider provider : service.getProvidersByIds(providerIds)) {
+            providers.put(provider.getId(), provider);
+        }
+        Map<Integer, EncounterRole> roles = new HashMap<Integer, EncounterRole>();
+        for (EncounterRole role : service.getEncounterRolesByIds(roleIds)) {
+            roles.put(role.getId(), role);
+        }
+
+        Map<EncounterRole, Set<Provider>> providersByRole = new HashMap<EncounterRole, Set<Provider>>();
+        for (QueueItemProvider queueItemProvider : queueItemProviders) {
+            Provider provider = providers.get(queueItemProvider.getProviderId());
+            if (provider == null) {
+                throw new HydrateRoleProviderMapException("Could not fetch provider with id: " + queueItemProvider.getProviderId());
+            }
+            EncounterRole encounterRole = roles.get(queueItemProvider.getEncounterRoleId());
+            if (encounterRole == null) {
+                throw new HydrateRoleProviderMapException("Could not fetch encounter role with id: " + queueItemProvider.getEncounterRoleId());
+            }
+
+            Set<Provider> providersSet = providersByRole.get(encounterRole);
+            if (providersSet == null) {
+                providersSet = new HashSet<Provider>();
+                providersByRole.put(encounterRole, providersSet);
+            }
+            providersSet.add(provider);
+        }
+        return providersByRole;
+    }
+
     protected Map<EncounterRole, Set<Provider>> hydrateRoleProviderMap(String roleProviderMap) throws HydrateRoleProviderMapException {
         // See https://regex101.com/r/wD9oZ4/2 for an explanation of the regex
         boolean valid = roleProviderMap.matches("^(?:\\d+:\\d+(?:,\\d+)*)(?:\\|(?:\\d+:\\d+(?:,\\d+)*))*$");
@@ -0,0 +1,50 @@
+package org.openmrs.module.xdsbrepository.tasks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+
+/**
+ * Returns queue items that are stuck in processing, because the worker that claimed them crashed
+ * or the module was restarted, to the queue once their lease has expired.
+ */
+public class QueueLeaseReaperTask implements Runnable {
+
+    private Log log = LogFactory.getLog(QueueLeaseReaperTask.class);
+
+    private ConfigurationManager configurationManager;
+
+    public QueueLeaseReaperTask() {
+    }
+
+    public QueueLeaseReaperTask(ConfigurationManager configurationManager) {
+        this.configurationManager = configurationManager;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Utils.startSession(getConfigurationManager().getConfiguration());
+            int requeued = Context.getService(XDSbService.class).requeueExpiredQueueItems();
+            if (requeued > 0) {
+                log.warn("Requeued " + requeued + " discrete data queue items whose processing lease had expired");
+            }
+        } catch (Exception e) {
+            // an exception would cancel the scheduled task
+            log.error("Error requeuing expired discrete data queue items", e);
+        } finally {
+            Context.closeSession();
+        }
+    }
+
+    protected ConfigurationManager getConfigurationManager() {
+        if (configurationManager == null) {
+            configurationManager = Utils.getConfigurationManager();
+        }
+        return configurationManager;
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.openmrs.module.xdsbrepository.tasks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+
+import java.util.Date;
+
+/**
+ * Deletes finished queue items once they are older than the retention period, keeping only their
+ * daily counts. Items are deleted in small batches, each in its own transaction and with a pause
+ * in between, so that the purge doesn't hold locks on the queue table for long. Expired submission
+ * replays and key lock rows that haven't been locked for a day are deleted as well, so that
+ * submissions don't have to.
+ */
+public class QueuePurgeTask implements Runnable {
+
+    private static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    private Log log = LogFactory.getLog(QueuePurgeTask.class);
+
+    private ConfigurationManager configurationManager;
+
+    private volatile boolean stopped;
+
+    public QueuePurgeTask() {
+    }
+
+    public QueuePurgeTask(ConfigurationManager configurationManager) {
+        this.configurationManager = configurationManager;
+    }
+
+    @Override
+    public void run() {
+        XDSbRepositoryConfiguration configuration = getConfigurationManager().getConfiguration();
+
+        try {
+            Utils.startSession(configuration);
+            XDSbService service = Context.getService(XDSbService.class);
+
+            int keyLocks = service.purgeKeyLocks(new Date(System.currentTimeMillis() - MILLIS_PER_DAY));
+            if (keyLocks > 0) {
+                log.debug("Purged " + keyLocks + " key lock rows");
+            }
+
+            if (configuration.getReplayRetentionHours() > 0) {
+                int replays = service.purgeSubmissionReplays(
+                        new Date(System.currentTimeMillis() - configuration.getReplayRetentionHours() * MILLIS_PER_HOUR));
+                if (replays > 0) {
+                    log.debug("Purged " + replays + " expired submission replays");
+                }
+            }
+
+            if (configuration.getAsyncRetentionDays() > 0) {
+                purgeFinishedQueueItems(service, configuration);
+            }
+        } catch (InterruptedException e) {
+            // the module is stopping, the rest is purged on the next run
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // an exception would cancel the scheduled task
+            log.error("Error purging finished discrete data queue items, submission replays and key locks", e);
+        } finally {
+            Context.closeSession();
+        }
+    }
+
+    private void purgeFinishedQueueItems(XDSbService service, XDSbRepositoryConfiguration configuration) throws InterruptedException {
+        Date finishedBefore = new Date(System.currentTimeMillis() - configuration.getAsyncRetentionDays() * MILLIS_PER_DAY);
+        int batchSize = Math.max(1, configuration.getAsyncPurgeBatchSize());
+
+        int total = 0;
+        int purged;
+        do {
+            purged = service.purgeFinishedQueueItems(finishedBefore, batchSize);
+            total += purged;
+            Context.clearSession();
+            if (purged == batchSize) {
+                Thread.sleep(configuration.getAsyncPurgePause());
+            }
+        } while (purged == batchSize && !stopped && !Thread.currentThread().isInterrupted());
+
+        if (total > 0) {
+            log.info("Purged " + total + " discrete data queue items that finished before " + finishedBefore);
+        }
+    }
+
+    /**
+     * Stops a running purge after its current batch, the rest is purged the next time it runs
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    protected ConfigurationManager getConfigurationManager() {
+        if (configurationManager == null) {
+            configurationManager = Utils.getConfigurationManager();
+        }
+        return configurationManager;
+    }
+
+}
@@ -0,0 +1,148 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.junit.Test;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AuditDispatcherTest extends BaseModuleContextSensitiveTest {
+
+    private static class TestEvent extends AuditEvent {
+        @Override
+        public void send() {
+        }
+    }
+
+    /**
+     * Counts sent events, the first batch waits until it is released
+     */
+    private static class TestDispatcher extends AuditDispatcher {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean failing;
+
+        @Override
+        protected List<AuditEvent> send(List<AuditEvent> batch) {
+            sending.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) {
+                failed.addAndGet(batch.size());
+                return new ArrayList<AuditEvent>(batch);
+            }
+            sent.addAndGet(batch.size());
+            return Collections.emptyList();
+        }
+
+        @Override
+        protected File getSpillDirectory() {
+            File dir = new File(System.getProperty("java.io.tmpdir"), "xdsbrepository-audit-test");
+            dir.mkdirs();
+            return dir;
+        }
+    }
+
+    private XDSbRepositoryConfiguration getConfiguration(String overflowPolicy) {
+        return Utils.getConfigurationManager().reload()
+                .with(XDSbServiceConstants.AUDIT_QUEUE_CAPACITY_GP, "1")
+                .with(XDSbServiceConstants.AUDIT_OVERFLOW_POLICY_GP, overflowPolicy);
+    }
+
+    @Test
+    public void dispatch_shouldCountDroppedEventsWhenTheQueueIsFull() throws Exception {
+        TestDispatcher dispatcher = new TestDispatcher();
+        dispatcher.start(getConfiguration("DROP"));
+
+        dispatcher.dispatch(new TestEvent());
+        assertTrue(dispatcher.sending.await(10, TimeUnit.SECONDS));
+        // the sender is busy, one event fits on the queue and the rest are dropped
+        dispatcher.dispatch(new TestEvent());
+        dispatcher.dispatch(new TestEvent());
+        dispatcher.dispatch(new TestEvent());
+        assertEquals(2, dispatcher.getDroppedCount());
+
+        dispatcher.release.countDown();
+        dispatcher.shutdown();
+        assertEquals(2, dispatcher.sent.get());
+    }
+
+    @Test
+    public void shutdown_shouldSendQueuedEvents() throws Exception {
+        TestDispatcher dispatcher = new TestDispatcher();
+        dispatcher.start(getConfiguration("BLOCK"));
+
+        dispatcher.dispatch(new TestEvent());
+        assertTrue(dispatcher.sending.await(10, TimeUnit.SECONDS));
+        dispatcher.dispatch(new TestEvent());
+        dispatcher.release.countDown();
+        dispatcher.shutdown();
+        assertEquals(2, dispatcher.sent.get());
+        assertEquals(0, dispatcher.getQueueSize());
+
+        // once stopped events are sent straight away
+        dispatcher.dispatch(new TestEvent());
+        assertEquals(3, dispatcher.sent.get());
+    }
+
+    @Test
+    public void dispatch_shouldKeepSpilledEventsThatCouldNotBeSent() throws Exception {
+        TestDispatcher dispatcher = new TestDispatcher();
+        File dir = dispatcher.getSpillDirectory();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dispatcher.start(getConfiguration("SPILL"));
+
+        dispatcher.dispatch(new TestEvent());
+        assertTrue(dispatcher.sending.await(10, TimeUnit.SECONDS));
+        // the sender is busy, one event fits on the queue and the other is written to disk
+        dispatcher.dispatch(new TestEvent());
+        dispatcher.dispatch(new TestEvent());
+        assertEquals(1, dispatcher.getSpilledCount());
+
+        dispatcher.failing = true;
+        dispatcher.release.countDown();
+        for (int i = 0; i < 100 && dispatcher.failed.get() < 3; i++) {
+            Thread.sleep(100);
+        }
+        dispatcher.shutdown();
+
+        assertTrue(dispatcher.failed.get() >= 3);
+        File[] spilled = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".audit");
+            }
+        });
+        assertEquals(1, spilled.length);
+    }
+
+    @Test
+    public void getEventDateTime_shouldBeTheTimeTheEventWasCreated() throws Exception {
+        long before = System.currentTimeMillis();
+        AuditEvent event = new TestEvent();
+        long after = System.currentTimeMillis();
+        Thread.sleep(20);
+
+        long eventTime = event.getEventDateTime().getTimeInMillis();
+        assertTrue(eventTime >= before && eventTime <= after);
+    }
+}
@@ -0,0 +1,96 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.junit.Test;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ContentHandoffCacheTest extends BaseModuleContextSensitiveTest {
+
+    /**
+     * Keeps 10 bytes in memory and 10 on disk
+     */
+    private static class TestCache extends ContentHandoffCache {
+        final XDSbRepositoryConfiguration configuration = Utils.getConfigurationManager().reload()
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_CACHE_SIZE, "10")
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_SPILL_SIZE, "10");
+
+        @Override
+        protected XDSbRepositoryConfiguration getConfiguration() {
+            return configuration;
+        }
+
+        @Override
+        protected File getSpillDirectory() {
+            File dir = new File(System.getProperty("java.io.tmpdir"), "xdsbrepository-handoff-test");
+            dir.mkdirs();
+            return dir;
+        }
+    }
+
+    private Content content(String id, int size) {
+        byte[] payload = new byte[size];
+        payload[0] = (byte) id.charAt(0);
+        return new Content(id, payload, new CodedValue("34133-9", "LOINC"), new CodedValue("urn:ihe:pcc:xphr:2007", "formatCodes"), "text/xml");
+    }
+
+    @Test
+    public void take_shouldReturnAStoredDocumentOnce() {
+        TestCache cache = new TestCache();
+        cache.clear();
+        Content stored = content("a", 4);
+        cache.put(stored);
+
+        Content taken = cache.take("a");
+        assertArrayEquals(stored.getPayload(), taken.getPayload());
+        assertEquals("34133-9", taken.getTypeCode().getCode());
+        assertEquals("text/xml", taken.getContentType());
+        assertNull(cache.take("a"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getMemoryBytes());
+    }
+
+    @Test
+    public void put_shouldSpillTheOldestDocumentsToDiskAndDropThemWhenTheDiskIsFull() {
+        TestCache cache = new TestCache();
+        cache.clear();
+        cache.put(content("a", 6));
+        cache.put(content("b", 6));
+        // a is on disk
+        assertEquals(6, cache.getMemoryBytes());
+        assertEquals(6, cache.getSpilledBytes());
+
+        cache.put(content("c", 6));
+        // b doesn't fit on disk next to a so it is dropped
+        assertEquals(6, cache.getMemoryBytes());
+        assertEquals(6, cache.getSpilledBytes());
+
+        assertEquals('a', cache.take("a").getPayload()[0]);
+        assertNull(cache.take("b"));
+        assertEquals('c', cache.take("c").getPayload()[0]);
+        assertEquals(0, cache.getSpilledBytes());
+        cache.clear();
+    }
+
+    @Test
+    public void put_shouldNotKeepDocumentsWhenTheCacheIsDisabled() {
+        TestCache cache = new TestCache() {
+            @Override
+            protected XDSbRepositoryConfiguration getConfiguration() {
+                return configuration.with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HANDOFF_CACHE_SIZE, "0");
+            }
+        };
+        cache.put(content("a", 4));
+        assertNull(cache.take("a"));
+    }
+}
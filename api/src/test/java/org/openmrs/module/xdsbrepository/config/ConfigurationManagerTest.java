@@ -0,0 +1,64 @@
+package org.openmrs.module.xdsbrepository.config;
+
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigurationManagerTest extends BaseModuleContextSensitiveTest {
+
+    @Test
+    public void getConfiguration_shouldReflectGlobalPropertyChanges() throws Exception {
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP, "1.2.3"));
+
+        ConfigurationManager manager = Utils.getConfigurationManager();
+        manager.reload();
+        assertEquals("1.2.3", manager.getConfiguration().getRepositoryUniqueId());
+
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP, "4.5.6"));
+        assertEquals("4.5.6", manager.getConfiguration().getRepositoryUniqueId());
+
+        as.purgeGlobalProperty(as.getGlobalPropertyObject(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP));
+        assertNull(manager.getConfiguration().getRepositoryUniqueId());
+    }
+
+    @Test
+    public void getConfiguration_shouldUseDefaultsForMissingOrInvalidValues() throws Exception {
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS, "lots"));
+
+        XDSbRepositoryConfiguration configuration = Utils.getConfigurationManager().reload();
+        assertEquals(6, configuration.getAsyncMaxTasks());
+        assertEquals(XDSbRepositoryConfiguration.DEFAULT_LOCATION_LOOKUP_ATTRIBUTE_TYPE_UUID,
+                configuration.getLocationLookupAttributeTypeUuid());
+        assertFalse(configuration.isDiscreteHandlerAsync());
+        assertTrue(configuration.with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC, "true").isDiscreteHandlerAsync());
+    }
+
+    @Test
+    public void getConfiguration_shouldParseListPropertiesWhenTheSnapshotIsBuilt() throws Exception {
+        XDSbRepositoryConfiguration configuration = Utils.getConfigurationManager().reload()
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_POOLS, "labs:2=LAB;bad")
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_BULK_SOURCE_IDS, "1.2.3, 4.5.6")
+                .with(XDSbServiceConstants.RATE_LIMIT_SOURCES_GP, "1.2.3=5/10");
+
+        assertEquals(1, configuration.getAsyncRoutes().size());
+        assertEquals("labs", configuration.getAsyncRoutes().get(0).getName());
+        assertTrue(configuration.getAsyncBulkSourceIds().contains("4.5.6"));
+        assertEquals(10, configuration.getRateLimitSources().get("1.2.3").getBurst(), 0);
+
+        // the hot paths get the parsed values rather than parsing them again
+        assertSame(configuration.getAsyncRoutes(), configuration.getAsyncRoutes());
+        assertSame(configuration.getRateLimitSources(), configuration.getRateLimitSources());
+    }
+}
@@ -19,10 +19,13 @@ import org.openmrs.module.shr.contenthandler.api.CodedValue;
 import org.openmrs.module.shr.contenthandler.api.Content;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.xdsbrepository.Utils;
 import org.openmrs.module.xdsbrepository.XDSbService;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
 import org.openmrs.module.xdsbrepository.exceptions.UnsupportedGenderException;
+import org.openmrs.module.xdsbrepository.model.QueueDailyStat;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.queue.QueueRoute;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.util.OpenmrsConstants;
 
@@ -34,6 +37,8 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -243,12 +248,94 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals(new Integer(1), qi.getEncounterType().getId());
         assertEquals("1:1,2|2:3", qi.getRoleProviderMap());
         assertEquals(QueueItem.Status.QUEUED, qi.getStatus());
+        assertEquals(QueueItem.Priority.LIVE, qi.getPriority());
         assertNotNull(qi.getDateAdded());
 
         // dequeue queue item to clear queued items
         service.dequeueNextDiscreteDataForProcessing();
     }
 
+    @Test
+    public void queueDiscreteDataProcessing_shouldUpdateTheQueuedItemWhenADocumentIsQueuedAgain() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem first = new QueueItem();
+        first.setPatient(Context.getPatientService().getPatient(2));
+        first.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        first.setRoleProviderMap("1:1,2|2:3");
+        first.setDocUniqueId("queued twice");
+        first.setPriority(QueueItem.Priority.BULK);
+        first = service.queueDiscreteDataProcessing(first);
+
+        QueueItem second = new QueueItem();
+        second.setPatient(Context.getPatientService().getPatient(2));
+        second.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        second.setRoleProviderMap("1:1");
+        second.setDocUniqueId("queued twice");
+        second = service.queueDiscreteDataProcessing(second);
+
+        assertEquals(first.getId(), second.getId());
+        assertEquals("1:1", second.getRoleProviderMap());
+        assertEquals(QueueItem.Priority.LIVE, second.getPriority());
+
+        assertNotNull(service.dequeueNextDiscreteDataForProcessing());
+        assertNull(service.dequeueNextDiscreteDataForProcessing());
+    }
+
+    @Test
+    public void queueDiscreteDataProcessing_shouldQueueAProcessingItemAgainOnceItCompletes() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("resubmitted");
+        service.queueDiscreteDataProcessing(qi);
+        qi = service.dequeueNextDiscreteDataForProcessing();
+
+        QueueItem again = new QueueItem();
+        again.setPatient(Context.getPatientService().getPatient(2));
+        again.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        again.setRoleProviderMap("1:1,2|2:3");
+        again.setDocUniqueId("resubmitted");
+        again = service.queueDiscreteDataProcessing(again);
+        assertEquals(qi.getId(), again.getId());
+        assertTrue(again.isRequeueRequested());
+
+        List<Integer> ids = new ArrayList<Integer>();
+        ids.add(qi.getId());
+        service.completeQueueItems(ids);
+        Context.refreshEntity(qi);
+        assertEquals(QueueItem.Status.QUEUED, qi.getStatus());
+        assertEquals(0, qi.getAttempts());
+
+        // once processed again the document has no active item
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        service.completeQueueItems(ids);
+        Context.refreshEntity(qi);
+        assertEquals(QueueItem.Status.SUCCESSFUL, qi.getStatus());
+        assertNull(qi.getActiveDocId());
+    }
+
+    @Test
+    public void purgeKeyLocks_shouldDeleteTheRowsOfKeysNotLockedSince() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        // each enqueue locks the document's key, locking it again reuses its row
+        for (int i = 0; i < 2; i++) {
+            QueueItem qi = new QueueItem();
+            qi.setPatient(Context.getPatientService().getPatient(2));
+            qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+            qi.setRoleProviderMap("1:1");
+            qi.setDocUniqueId("locked twice");
+            service.queueDiscreteDataProcessing(qi);
+        }
+
+        assertEquals(0, service.purgeKeyLocks(new Date(System.currentTimeMillis() - 60000)));
+        assertEquals(1, service.purgeKeyLocks(new Date(System.currentTimeMillis() + 60000)));
+    }
+
     @Test
     public void dequeueNextDiscreteDataForProcessing_shouldFetchQueueItemAndSetStatusToProcessing() {
         XDSbService service = Context.getService(XDSbService.class);
@@ -302,6 +389,307 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals("I'm OLD", qi.getDocUniqueId());
     }
 
+    @Test
+    public void dequeueDiscreteDataForProcessing_shouldClaimAtMostTheRequestedNumberOfItemsOldestFirst() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        // different patients so that the items aren't in the same lane
+        int[] patientIds = { 2, 6, 7 };
+        for (int i = 0; i < 3; i++) {
+            QueueItem qi = new QueueItem();
+            qi.setPatient(Context.getPatientService().getPatient(patientIds[i]));
+            qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+            qi.setRoleProviderMap("1:1,2|2:3");
+            qi.setDocUniqueId("batch-" + i);
+            service.queueDiscreteDataProcessing(qi);
+        }
+
+        List<QueueItem> claimed = service.dequeueDiscreteDataForProcessing(2);
+        assertEquals(2, claimed.size());
+        assertEquals("batch-0", claimed.get(0).getDocUniqueId());
+        assertEquals("batch-1", claimed.get(1).getDocUniqueId());
+        assertEquals(QueueItem.Status.PROCESSING, claimed.get(1).getStatus());
+
+        claimed = service.dequeueDiscreteDataForProcessing(2);
+        assertEquals(1, claimed.size());
+        assertEquals("batch-2", claimed.get(0).getDocUniqueId());
+        assertTrue(service.dequeueDiscreteDataForProcessing(2).isEmpty());
+    }
+
+    @Test
+    public void dequeueDiscreteDataForProcessing_shouldProcessOnePatientsItemsOneAtATimeInOrder() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        for (int i = 0; i < 2; i++) {
+            QueueItem qi = new QueueItem();
+            qi.setPatient(Context.getPatientService().getPatient(2));
+            qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+            qi.setRoleProviderMap("1:1,2|2:3");
+            qi.setDocUniqueId("lane-" + i);
+            service.queueDiscreteDataProcessing(qi);
+        }
+
+        List<QueueItem> claimed = service.dequeueDiscreteDataForProcessing(2);
+        assertEquals(1, claimed.size());
+        assertEquals("lane-0", claimed.get(0).getDocUniqueId());
+        // the patient's lane is busy
+        assertTrue(service.dequeueDiscreteDataForProcessing(2).isEmpty());
+
+        service.completeQueueItem(claimed.get(0), true);
+        claimed = service.dequeueDiscreteDataForProcessing(2);
+        assertEquals(1, claimed.size());
+        assertEquals("lane-1", claimed.get(0).getDocUniqueId());
+    }
+
+    @Test
+    public void dequeueDiscreteDataForProcessing_shouldClaimFromBothPriorityClasses() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem bulk = new QueueItem();
+        bulk.setPatient(Context.getPatientService().getPatient(2));
+        bulk.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        bulk.setRoleProviderMap("1:1,2|2:3");
+        bulk.setDocUniqueId("bulk");
+        bulk.setPriority(QueueItem.Priority.BULK);
+        service.queueDiscreteDataProcessing(bulk);
+
+        QueueItem live = new QueueItem();
+        live.setPatient(Context.getPatientService().getPatient(6));
+        live.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        live.setRoleProviderMap("1:1,2|2:3");
+        live.setDocUniqueId("live");
+        service.queueDiscreteDataProcessing(live);
+
+        // a slot that one class can't fill goes to the other class
+        assertEquals(1, service.dequeueDiscreteDataForProcessing(1).size());
+        assertEquals(1, service.dequeueDiscreteDataForProcessing(1).size());
+        assertTrue(service.dequeueDiscreteDataForProcessing(1).isEmpty());
+        assertEquals(QueueItem.Status.PROCESSING, bulk.getStatus());
+        assertEquals(QueueItem.Status.PROCESSING, live.getStatus());
+    }
+
+    @Test
+    public void dequeueDiscreteDataForProcessing_shouldOnlyClaimItemsOnTheRoute() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        int[] patientIds = { 2, 6, 7 };
+        String[] formatCodes = { "cda", "lab", null };
+        for (int i = 0; i < 3; i++) {
+            QueueItem qi = new QueueItem();
+            qi.setPatient(Context.getPatientService().getPatient(patientIds[i]));
+            qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+            qi.setRoleProviderMap("1:1,2|2:3");
+            qi.setDocUniqueId("routed-" + i);
+            qi.setFormatCode(formatCodes[i]);
+            service.queueDiscreteDataProcessing(qi);
+        }
+
+        Set<String> codes = new HashSet<String>();
+        codes.add("cda");
+        List<QueueItem> claimed = service.dequeueDiscreteDataForProcessing(5, QueueRoute.named("cda", 1, codes));
+        assertEquals(1, claimed.size());
+        assertEquals("routed-0", claimed.get(0).getDocUniqueId());
+
+        // the rest go to the default route
+        claimed = service.dequeueDiscreteDataForProcessing(5, QueueRoute.defaultRoute(codes));
+        assertEquals(2, claimed.size());
+    }
+
+    @Test
+    public void dequeueDiscreteDataForProcessing_shouldRecordTheOwnerAndLeaseOfClaimedItems() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("claimed");
+        service.queueDiscreteDataProcessing(qi);
+
+        List<QueueItem> claimed = service.dequeueDiscreteDataForProcessing(1);
+        assertEquals(1, claimed.size());
+        assertNotNull(claimed.get(0).getOwner());
+        assertTrue(claimed.get(0).getLeaseUntil().after(new Date()));
+
+        // a claimed item can't be claimed again
+        assertTrue(service.dequeueDiscreteDataForProcessing(1).isEmpty());
+    }
+
+    @Test
+    public void extendQueueItemLease_shouldRenewTheLeaseOnlyWhileTheItemIsClaimed() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("leased");
+        service.queueDiscreteDataProcessing(qi);
+
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        // waited behind the rest of its batch until the lease nearly ran out
+        qi.setLeaseUntil(new Date(System.currentTimeMillis() + 1000));
+        assertTrue(service.extendQueueItemLease(qi.getId()));
+        Context.refreshEntity(qi);
+        assertTrue(qi.getLeaseUntil().after(new Date(System.currentTimeMillis() + 60000)));
+
+        // the lease expired and the item was requeued
+        qi.setLeaseUntil(new Date(System.currentTimeMillis() - 1000));
+        service.requeueExpiredQueueItems();
+        assertFalse(service.extendQueueItemLease(qi.getId()));
+    }
+
+    @Test
+    public void requeueExpiredQueueItems_shouldRequeueItemsWhoseLeaseHasExpired() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("stuck");
+        service.queueDiscreteDataProcessing(qi);
+
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        assertEquals(1, qi.getAttempts());
+        assertEquals(0, service.requeueExpiredQueueItems());
+
+        // the worker that claimed it has gone away
+        qi.setLeaseUntil(new Date(System.currentTimeMillis() - 1000));
+        Context.flushSession();
+        assertEquals(1, service.requeueExpiredQueueItems());
+
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        assertEquals("stuck", qi.getDocUniqueId());
+        assertEquals(2, qi.getAttempts());
+    }
+
+    @Test
+    public void failQueueItem_shouldRetryAfterABackoffAndThenMarkTheItemAsDead() {
+        XDSbService service = Context.getService(XDSbService.class);
+        Context.getAdministrationService().saveGlobalProperty(
+                new GlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_MAX_ATTEMPTS, "2"));
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("Will fail twice");
+        service.queueDiscreteDataProcessing(qi);
+
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        qi = service.failQueueItem(qi, "lock timeout");
+        assertEquals(QueueItem.Status.QUEUED, qi.getStatus());
+        assertEquals("lock timeout", qi.getErrorMessage());
+        assertTrue(qi.getNextAttemptAt().after(new Date()));
+        // not due yet
+        assertNull(service.dequeueNextDiscreteDataForProcessing());
+
+        qi.setNextAttemptAt(new Date(System.currentTimeMillis() - 1000));
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        qi = service.failQueueItem(qi, "lock timeout again");
+        assertEquals(QueueItem.Status.DEAD, qi.getStatus());
+
+        assertEquals(1, service.requeueDeadQueueItems());
+        Context.refreshEntity(qi);
+        assertEquals(QueueItem.Status.QUEUED, qi.getStatus());
+        assertEquals(0, qi.getAttempts());
+    }
+
+    @Test
+    public void completeQueueItems_shouldMarkAllProcessingItemsAsSuccessful() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        int[] patientIds = { 2, 6 };
+        for (int i = 0; i < 2; i++) {
+            QueueItem qi = new QueueItem();
+            qi.setPatient(Context.getPatientService().getPatient(patientIds[i]));
+            qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+            qi.setRoleProviderMap("1:1,2|2:3");
+            qi.setDocUniqueId("batch-complete-" + i);
+            service.queueDiscreteDataProcessing(qi);
+        }
+
+        List<QueueItem> claimed = service.dequeueDiscreteDataForProcessing(2);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (QueueItem qi : claimed) {
+            ids.add(qi.getId());
+        }
+        assertEquals(2, service.completeQueueItems(ids));
+
+        for (QueueItem qi : claimed) {
+            Context.refreshEntity(qi);
+            assertEquals(QueueItem.Status.SUCCESSFUL, qi.getStatus());
+        }
+    }
+
+    @Test
+    public void completeQueueItems_shouldNotUpdateItemsClaimedByAnotherWorker() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("reclaimed");
+        service.queueDiscreteDataProcessing(qi);
+
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        // the lease expired and the item was claimed by a worker on another node
+        qi.setOwner("other-node/worker");
+        List<Integer> ids = new ArrayList<Integer>();
+        ids.add(qi.getId());
+        assertEquals(0, service.completeQueueItems(ids));
+        assertEquals(0, service.releaseQueueItems(ids));
+        assertNull(service.failQueueItem(qi, "too late"));
+
+        Context.refreshEntity(qi);
+        assertEquals(QueueItem.Status.PROCESSING, qi.getStatus());
+        assertEquals("other-node/worker", qi.getOwner());
+    }
+
+    @Test
+    public void completeQueueItems_shouldNotUpdateItemsClaimedByAnEarlierRunOnTheSameThread() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("claimed-by-run");
+        service.queueDiscreteDataProcessing(qi);
+
+        qi = service.dequeueDiscreteDataForProcessing(1, null, "first-run").get(0);
+        List<Integer> ids = new ArrayList<Integer>();
+        ids.add(qi.getId());
+        assertFalse(service.extendQueueItemLease(qi.getId(), "second-run"));
+        assertEquals(0, service.completeQueueItems(ids, "second-run"));
+        assertEquals(1, service.completeQueueItems(ids, "first-run"));
+    }
+
+    @Test
+    public void releaseQueueItems_shouldReturnClaimedItemsToTheQueueWithoutUsingAnAttempt() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        QueueItem qi = new QueueItem();
+        qi.setPatient(Context.getPatientService().getPatient(2));
+        qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+        qi.setRoleProviderMap("1:1,2|2:3");
+        qi.setDocUniqueId("released");
+        service.queueDiscreteDataProcessing(qi);
+
+        qi = service.dequeueNextDiscreteDataForProcessing();
+        List<Integer> ids = new ArrayList<Integer>();
+        ids.add(qi.getId());
+        assertEquals(1, service.releaseQueueItems(ids));
+
+        Context.refreshEntity(qi);
+        assertEquals(QueueItem.Status.QUEUED, qi.getStatus());
+        assertEquals(0, qi.getAttempts());
+        assertNull(qi.getOwner());
+        assertEquals("released", service.dequeueNextDiscreteDataForProcessing().getDocUniqueId());
+    }
+
     @Test
     public void completeQueueItem_shouldMarkQueueItemAsSuccessful() {
         XDSbService service = Context.getService(XDSbService.class);
@@ -340,6 +728,34 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals("Will fail", qi.getDocUniqueId());
     }
 
+    @Test
+    public void purgeFinishedQueueItems_shouldDeleteFinishedItemsAndCountThemByDay() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        int[] patientIds = { 2, 6 };
+        for (int i = 0; i < 2; i++) {
+            QueueItem qi = new QueueItem();
+            qi.setPatient(Context.getPatientService().getPatient(patientIds[i]));
+            qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+            qi.setRoleProviderMap("1:1,2|2:3");
+            qi.setDocUniqueId("purge-" + i);
+            service.queueDiscreteDataProcessing(qi);
+        }
+        QueueItem done = service.dequeueNextDiscreteDataForProcessing();
+        service.completeQueueItem(done, true);
+
+        Date now = new Date();
+        // the item that is still queued is kept
+        assertEquals(1, service.purgeFinishedQueueItems(new Date(now.getTime() + 1000), 10));
+        assertEquals(0, service.purgeFinishedQueueItems(new Date(now.getTime() + 1000), 10));
+
+        List<QueueDailyStat> stats = service.getQueueDailyStats(now, now);
+        assertEquals(1, stats.size());
+        assertEquals(QueueItem.Status.SUCCESSFUL, stats.get(0).getStatus());
+        assertEquals(1, stats.get(0).getItemCount());
+        assertEquals(1, stats.get(0).getAttemptCount());
+    }
+
     @Test
     public void stringifyRoleProvidersMap_shouldReturnAStringRepresentationOfTheMap() {
         XDSbServiceImpl service = new XDSbServiceImpl();
@@ -612,6 +1028,19 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals("History and Physical - non existing", encounterType.getName());
     }
 
+    @Test
+    public void findOrCreateEncounterType_shouldNotCreateTheSameEncounterTypeTwice() throws Exception {
+        XDSbServiceImpl service = new XDSbServiceImpl();
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest2.xml");
+        List<ExtrinsicObjectType> extrinsicObjects = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest());
+        ExtrinsicObjectType eo = extrinsicObjects.get(0);
+
+        EncounterType first = service.findOrCreateEncounterType(eo);
+        EncounterType second = service.findOrCreateEncounterType(eo);
+
+        assertEquals(first.getId(), second.getId());
+    }
+
     @Test
     public void storeDocument_shouldReturnTheDocumentUniqueId() throws Exception {
         XDSbServiceImpl service = new XDSbServiceImpl();
@@ -837,4 +1266,72 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals(2, patient.getIdentifiers().size());
     }
 
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldAnswerARetriedSubmissionWithTheOriginalResponse() throws Exception {
+        stubRegistry();
+
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty("shr.contenthandler.unstructureddatahandler.key", "ContentObsHandler"));
+        as.saveGlobalProperty(new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COMPLEX_OBS_DIR, "test_complex_obs"));
+
+        XDSbService service = Context.getService(XDSbService.class);
+        RegistryResponseType original = service.provideAndRegisterDocumentSetB(
+                parseRequestFromResourceName("provideAndRegRequest-patientWithExistingSourcePatientId.xml"));
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, original.getStatus());
+
+        // the source retries, e.g. because it didn't get the first response
+        RegistryResponseType retried = service.provideAndRegisterDocumentSetB(
+                parseRequestFromResourceName("provideAndRegRequest-patientWithExistingSourcePatientId.xml"));
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, retried.getStatus());
+
+        // the documents were only registered once
+        com.github.tomakehurst.wiremock.client.WireMock.verify(1, postRequestedFor(urlEqualTo("/ws/xdsregistry")));
+    }
+
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldNotChargeARetriedSubmissionToTheRateLimit() throws Exception {
+        stubRegistry();
+
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty("shr.contenthandler.unstructureddatahandler.key", "ContentObsHandler"));
+        as.saveGlobalProperty(new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COMPLEX_OBS_DIR, "test_complex_obs"));
+
+        XDSbService service = Context.getService(XDSbService.class);
+        service.provideAndRegisterDocumentSetB(parseRequestFromResourceName("provideAndRegRequest-patientWithExistingSourcePatientId.xml"));
+
+        // the source has used up its rate limit
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.RATE_LIMIT_DEFAULT_GP, "0.01/1"));
+        try {
+            while (Utils.getSourceRateLimiter().tryAcquire("1.3.6.1.4.1.21367.2009.1.2.1")) {
+                // empty the bucket
+            }
+
+            RegistryResponseType retried = service.provideAndRegisterDocumentSetB(
+                    parseRequestFromResourceName("provideAndRegRequest-patientWithExistingSourcePatientId.xml"));
+            assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, retried.getStatus());
+        } finally {
+            // the configuration isn't reloaded when the test's transaction rolls back
+            as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.RATE_LIMIT_DEFAULT_GP, "0"));
+        }
+    }
+
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldTurnAwayARetryWhileTheOriginalIsBeingProcessed() throws Exception {
+        stubRegistry();
+
+        // the original submission has claimed the submission set but not completed yet
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest-patientWithExistingSourcePatientId.xml");
+        String payloadDigest = new XDSbServiceImpl().getPayloadDigest(request);
+        Context.getAdministrationService().executeSQL("insert into xdsbrepository_submission_replay "
+                + "(submission_set_unique_id, payload_digest, date_created) values ('2009.9.1.2456', '" + payloadDigest + "', now())", false);
+
+        try {
+            Context.getService(XDSbService.class).provideAndRegisterDocumentSetB(request);
+            fail("the retry should have been turned away");
+        } catch (XDSException e) {
+            assertEquals(XDSbServiceConstants.ERROR_XDS_REPOSITORY_BUSY, e.getErrorCode());
+        }
+        com.github.tomakehurst.wiremock.client.WireMock.verify(0, postRequestedFor(urlEqualTo("/ws/xdsregistry")));
+    }
+
 }
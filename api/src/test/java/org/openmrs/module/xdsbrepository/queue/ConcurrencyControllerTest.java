@@ -0,0 +1,57 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import org.hibernate.exception.LockAcquisitionException;
+import org.junit.Test;
+
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrencyControllerTest {
+
+    @Test
+    public void adjust_shouldAddAProcessorWhileItemsAreWaiting() {
+        ConcurrencyController controller = new ConcurrencyController();
+        controller.recordSuccess(100);
+        assertEquals(5, controller.adjust(4, 10, 1, 8, 2000));
+        // nothing waiting
+        assertEquals(4, controller.adjust(4, 0, 1, 8, 2000));
+        // never more than the maximum
+        controller.recordSuccess(100);
+        assertEquals(8, controller.adjust(8, 10, 1, 8, 2000));
+    }
+
+    @Test
+    public void adjust_shouldNotAddProcessorsWhenNothingWasProcessed() {
+        ConcurrencyController controller = new ConcurrencyController();
+        // items are waiting but the processors aren't getting through them
+        assertEquals(4, controller.adjust(4, 10, 1, 8, 2000));
+    }
+
+    @Test
+    public void adjust_shouldRemoveProcessorsWhenItemsAreSlow() {
+        ConcurrencyController controller = new ConcurrencyController();
+        controller.recordSuccess(3000);
+        controller.recordSuccess(2000);
+        assertEquals(6, controller.adjust(8, 10, 1, 8, 2000));
+    }
+
+    @Test
+    public void adjust_shouldRemoveProcessorsOnDatabaseErrorsButNotBelowTheMinimum() {
+        ConcurrencyController controller = new ConcurrencyController();
+        controller.recordFailure(100, new RuntimeException(
+                new LockAcquisitionException("lock wait timeout", new SQLException())));
+        assertEquals(2, controller.adjust(2, 10, 2, 8, 2000));
+
+        // other failures are the document's fault, not the database's
+        controller.recordFailure(100, new IllegalArgumentException("bad document"));
+        assertEquals(3, controller.adjust(2, 10, 2, 8, 2000));
+    }
+
+    @Test
+    public void adjust_shouldRemoveProcessorsWhenClaimingFailsWithDatabaseErrors() {
+        ConcurrencyController controller = new ConcurrencyController();
+        controller.recordClaimFailure(new LockAcquisitionException("deadlock", new SQLException()));
+        assertEquals(3, controller.adjust(4, 10, 1, 8, 2000));
+    }
+}
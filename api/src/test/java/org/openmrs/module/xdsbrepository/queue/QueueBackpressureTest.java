@@ -0,0 +1,91 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import org.dcm4chee.xds2.common.exception.XDSException;
+import org.junit.Test;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueueBackpressureTest extends BaseModuleContextSensitiveTest {
+
+    /**
+     * Reports a fixed queue depth
+     */
+    private static class TestBackpressure extends QueueBackpressure {
+        final XDSbRepositoryConfiguration configuration;
+        long depth;
+
+        TestBackpressure(String policy) {
+            configuration = createConfiguration(policy);
+        }
+
+        @Override
+        protected long getQueueDepth() {
+            return depth;
+        }
+
+        @Override
+        protected Date getOldestDueQueueItemDate() {
+            return null;
+        }
+
+        @Override
+        protected XDSbRepositoryConfiguration getConfiguration() {
+            return configuration;
+        }
+    }
+
+    private static XDSbRepositoryConfiguration createConfiguration(String policy) {
+        return Utils.getConfigurationManager().reload()
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC, "true")
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_BACKPRESSURE_POLICY, policy)
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HIGH_QUEUE_DEPTH, "100")
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_LOW_QUEUE_DEPTH, "50")
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_HIGH_QUEUE_AGE, "600")
+                .with(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_LOW_QUEUE_AGE, "60");
+    }
+
+    @Test
+    public void isOverWatermark_shouldStayOverUntilTheQueueIsBelowTheLowWatermarks() {
+        XDSbRepositoryConfiguration configuration = createConfiguration("REJECT");
+        assertFalse(QueueBackpressure.isOverWatermark(false, 99, 0, configuration));
+        assertTrue(QueueBackpressure.isOverWatermark(false, 100, 0, configuration));
+        assertTrue(QueueBackpressure.isOverWatermark(false, 0, 600, configuration));
+
+        // between the watermarks nothing changes
+        assertTrue(QueueBackpressure.isOverWatermark(true, 75, 0, configuration));
+        assertFalse(QueueBackpressure.isOverWatermark(false, 75, 0, configuration));
+        // both the depth and the age have to be low
+        assertTrue(QueueBackpressure.isOverWatermark(true, 10, 300, configuration));
+        assertFalse(QueueBackpressure.isOverWatermark(true, 10, 30, configuration));
+    }
+
+    @Test
+    public void admit_shouldRejectSubmissionsAsBusyWhenTheQueueIsOverItsHighWatermark() throws Exception {
+        TestBackpressure backpressure = new TestBackpressure("REJECT");
+        backpressure.depth = 100;
+        try {
+            backpressure.admit();
+            fail("The submission should have been rejected");
+        } catch (XDSException e) {
+            assertEquals(XDSbServiceConstants.ERROR_XDS_REPOSITORY_BUSY, e.getErrorCode());
+        }
+        assertEquals(1, backpressure.getRejectedCount());
+    }
+
+    @Test
+    public void admit_shouldAcceptSubmissionsWhenThePolicyIsNone() throws Exception {
+        TestBackpressure backpressure = new TestBackpressure("NONE");
+        backpressure.depth = 1000;
+        backpressure.admit();
+        assertEquals(0, backpressure.getRejectedCount());
+    }
+}
@@ -0,0 +1,24 @@
+package org.openmrs.module.xdsbrepository.queue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueueSignalTest {
+
+    @Test
+    public void awaitWork_shouldTimeOutWhenNotSignalled() throws Exception {
+        QueueSignal signal = new QueueSignal();
+        assertFalse(signal.awaitWork(signal.getGeneration(), 10));
+    }
+
+    @Test
+    public void awaitWork_shouldNotMissASignalSentBeforeWaiting() throws Exception {
+        QueueSignal signal = new QueueSignal();
+        long generation = signal.getGeneration();
+        // work is queued after the processor found the queue empty but before it waits
+        signal.signalWork();
+        assertTrue(signal.awaitWork(generation, 10000));
+    }
+}
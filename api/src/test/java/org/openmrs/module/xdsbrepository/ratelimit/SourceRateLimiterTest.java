@@ -0,0 +1,87 @@
+package org.openmrs.module.xdsbrepository.ratelimit;
+
+import org.junit.Test;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SourceRateLimiterTest extends BaseModuleContextSensitiveTest {
+
+    /**
+     * Lets sources submit once a second with a burst of 2, except for the emr source which has no limit
+     */
+    private static class TestRateLimiter extends SourceRateLimiter {
+        final XDSbRepositoryConfiguration configuration = Utils.getConfigurationManager().reload()
+                .with(XDSbServiceConstants.RATE_LIMIT_DEFAULT_GP, "1/2")
+                .with(XDSbServiceConstants.RATE_LIMIT_SOURCES_GP, "1.3.6.1.4.1.21367.2010.1.2=0");
+        long nanos;
+
+        @Override
+        protected long nanoTime() {
+            return nanos;
+        }
+
+        @Override
+        protected XDSbRepositoryConfiguration getConfiguration() {
+            return configuration;
+        }
+    }
+
+    @Test
+    public void tryAcquire_shouldThrottleASourceOnceItsBucketIsEmpty() {
+        TestRateLimiter limiter = new TestRateLimiter();
+        assertTrue(limiter.tryAcquire("1.2.3"));
+        assertTrue(limiter.tryAcquire("1.2.3"));
+        assertFalse(limiter.tryAcquire("1.2.3"));
+        assertEquals(Long.valueOf(1), limiter.getThrottledCounts().get("1.2.3"));
+
+        // other sources have buckets of their own
+        assertTrue(limiter.tryAcquire("4.5.6"));
+
+        // a token is added every second
+        limiter.nanos += 1000000000L;
+        assertTrue(limiter.tryAcquire("1.2.3"));
+        assertFalse(limiter.tryAcquire("1.2.3"));
+    }
+
+    @Test
+    public void tryAcquire_shouldNotThrottleASourceWithoutALimit() {
+        TestRateLimiter limiter = new TestRateLimiter();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("1.3.6.1.4.1.21367.2010.1.2"));
+        }
+        assertNull(limiter.getThrottledCounts().get("1.3.6.1.4.1.21367.2010.1.2"));
+    }
+
+    @Test
+    public void tryAcquire_shouldEvictTheBucketsOfIdleSources() {
+        TestRateLimiter limiter = new TestRateLimiter();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("idle." + i));
+        }
+        assertEquals(10, limiter.getBucketCount());
+
+        // the idle buckets have long since refilled by the next eviction
+        limiter.nanos += 61 * 1000000000L;
+        assertTrue(limiter.tryAcquire("busy"));
+        assertEquals(1, limiter.getBucketCount());
+
+        // an evicted source starts again with a full bucket
+        assertTrue(limiter.tryAcquire("idle.0"));
+        assertTrue(limiter.tryAcquire("idle.0"));
+        assertFalse(limiter.tryAcquire("idle.0"));
+    }
+
+    @Test
+    public void parse_shouldReadTheRateAndBurst() {
+        assertEquals(new RateLimit(2.5, 10), RateLimit.parse("2.5/10"));
+        assertEquals(new RateLimit(2.5, 3), RateLimit.parse("2.5"));
+        assertTrue(RateLimit.parse("0").isUnlimited());
+    }
+}
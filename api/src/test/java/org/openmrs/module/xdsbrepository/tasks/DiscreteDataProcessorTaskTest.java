@@ -17,8 +17,10 @@ import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
 import org.openmrs.module.xdsbrepository.exceptions.HydrateRoleProviderMapException;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.model.QueueItemProvider;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -137,6 +139,36 @@ public class DiscreteDataProcessorTaskTest extends BaseModuleContextSensitiveTes
         testInvalid(processor, "1:|1:2,3");
     }
 
+    @Test
+    public void hydrateProviders_shouldLoadTheProvidersByRole() throws Exception {
+        DiscreteDataProcessorTask processor = new DiscreteDataProcessorTask();
+        Set<QueueItemProvider> providers = new HashSet<QueueItemProvider>();
+        providers.add(new QueueItemProvider(311, 301));
+        providers.add(new QueueItemProvider(311, 302));
+        providers.add(new QueueItemProvider(312, 303));
+
+        Map<EncounterRole, Set<Provider>> encounterRoleSetMap = processor.hydrateProviders(providers);
+        assertEquals(2, encounterRoleSetMap.size());
+        EncounterService es = Context.getEncounterService();
+        assertEquals(2, encounterRoleSetMap.get(es.getEncounterRole(311)).size());
+        assertEquals(1, encounterRoleSetMap.get(es.getEncounterRole(312)).size());
+    }
+
+    @Test
+    public void hydrateProviders_shouldThrowAnExceptionIfProviderDoesNotExist() throws Exception {
+        DiscreteDataProcessorTask processor = new DiscreteDataProcessorTask();
+        Set<QueueItemProvider> providers = new HashSet<QueueItemProvider>();
+        providers.add(new QueueItemProvider(311, 301));
+        providers.add(new QueueItemProvider(311, 999));
+        try {
+            processor.hydrateProviders(providers);
+            fail("Did not throw an exception");
+        } catch (HydrateRoleProviderMapException e) {
+            // expected
+            assertEquals("Could not fetch provider with id: 999", e.getMessage());
+        }
+    }
+
     private void testInvalid(DiscreteDataProcessorTask processor, String format) {
         try {
             processor.hydrateRoleProviderMap(format);
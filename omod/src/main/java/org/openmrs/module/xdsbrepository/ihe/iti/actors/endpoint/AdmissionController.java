@@ -0,0 +1,139 @@
+package org.openmrs.module.xdsbrepository.ihe.iti.actors.endpoint;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests the repository endpoint processes at once, separately for each
+ * transaction so that a burst of large submissions can't take every container thread and database
+ * connection away from retrievals.
+ * <p/>
+ * A request that can't start straight away waits, unless too many requests of its transaction are
+ * already waiting or it has waited too long, in which case it is rejected so that the source gets
+ * an answer quickly rather than timing out. Retrievals have priority: no new submission starts
+ * while a retrieval is waiting. The limits are read from the configuration for every request, so
+ * changes take effect straight away.
+ */
+@Component
+public class AdmissionController {
+
+	/**
+	 * The transactions that are admitted separately
+	 */
+	public enum Transaction {
+		/** ITI-41 */
+		PROVIDE_AND_REGISTER,
+		/** ITI-43 */
+		RETRIEVE
+	}
+
+	private final Log log = LogFactory.getLog(this.getClass());
+
+	private final Object lock = new Object();
+
+	private final int[] active = new int[Transaction.values().length];
+
+	private final int[] waiting = new int[Transaction.values().length];
+
+	private final AtomicLong[] rejected = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+
+	/**
+	 * Waits until a request may be processed, it must be followed by {@link #release(Transaction)}
+	 *
+	 * @return false if the request is rejected
+	 */
+	public boolean acquire(Transaction transaction) {
+		XDSbRepositoryConfiguration configuration = getConfiguration();
+		int i = transaction.ordinal();
+		synchronized (lock) {
+			if (canStart(transaction, configuration)) {
+				active[i]++;
+				return true;
+			}
+			if (waiting[i] >= getMaxWaiting(transaction, configuration)) {
+				return reject(transaction, "too many requests are waiting");
+			}
+
+			waiting[i]++;
+			try {
+				long deadline = System.currentTimeMillis() + configuration.getAdmissionMaxWait();
+				while (!canStart(transaction, configuration)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return reject(transaction, "it waited too long");
+					}
+					lock.wait(remaining);
+				}
+				active[i]++;
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return reject(transaction, "it was interrupted");
+			} finally {
+				waiting[i]--;
+				// a submission may have been waiting for this retrieval to start
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Lets the next waiting request start
+	 */
+	public void release(Transaction transaction) {
+		synchronized (lock) {
+			active[transaction.ordinal()]--;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return the number of requests of the transaction that were rejected
+	 */
+	public long getRejectedCount(Transaction transaction) {
+		return rejected[transaction.ordinal()].get();
+	}
+
+	/**
+	 * @return the number of requests of the transaction being processed
+	 */
+	public int getActiveCount(Transaction transaction) {
+		synchronized (lock) {
+			return active[transaction.ordinal()];
+		}
+	}
+
+	protected XDSbRepositoryConfiguration getConfiguration() {
+		return Utils.getConfigurationManager().getConfiguration();
+	}
+
+	private boolean canStart(Transaction transaction, XDSbRepositoryConfiguration configuration) {
+		int max = getMaxConcurrent(transaction, configuration);
+		if (max > 0 && active[transaction.ordinal()] >= max) {
+			return false;
+		}
+		return transaction == Transaction.RETRIEVE || waiting[Transaction.RETRIEVE.ordinal()] == 0;
+	}
+
+	private boolean reject(Transaction transaction, String reason) {
+		rejected[transaction.ordinal()].incrementAndGet();
+		log.warn("Rejected a " + transaction + " request because " + reason);
+		return false;
+	}
+
+	private int getMaxConcurrent(Transaction transaction, XDSbRepositoryConfiguration configuration) {
+		return transaction == Transaction.RETRIEVE ? configuration.getAdmissionRetrieveMaxConcurrent()
+				: configuration.getAdmissionSubmitMaxConcurrent();
+	}
+
+	private int getMaxWaiting(Transaction transaction, XDSbRepositoryConfiguration configuration) {
+		return transaction == Transaction.RETRIEVE ? configuration.getAdmissionRetrieveMaxWaiting()
+				: configuration.getAdmissionSubmitMaxWaiting();
+	}
+
+}
@@ -0,0 +1,19 @@
+package org.openmrs.module.xdsbrepository.ihe.iti.actors.endpoint;
+
+import org.springframework.ws.soap.server.endpoint.annotation.FaultCode;
+import org.springframework.ws.soap.server.endpoint.annotation.SoapFault;
+
+/**
+ * Thrown when the {@link AdmissionController} rejects a request, it is returned to the source as
+ * a Receiver SOAP fault so that it knows to try again later
+ */
+@SoapFault(faultCode = FaultCode.RECEIVER)
+public class RequestRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RequestRejectedException(String message) {
+		super(message);
+	}
+
+}
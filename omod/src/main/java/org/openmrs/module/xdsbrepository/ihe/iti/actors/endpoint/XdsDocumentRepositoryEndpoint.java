@@ -23,6 +23,10 @@ public class XdsDocumentRepositoryEndpoint {
 	
 	// The service hosted by the endpoint
 	private XdsDocumentRepositoryService m_service;
+
+	// Limits the requests processed at once
+	@Autowired
+	private AdmissionController m_admissionController;
 	
 	/**
 	 * Ctor auto-wires the endpoint to the service
@@ -44,7 +48,12 @@ public class XdsDocumentRepositoryEndpoint {
 	@ResponsePayload
 	public JAXBElement<RegistryResponseType> provideAndRegisterDocumentSetB(@RequestPayload JAXBElement<ProvideAndRegisterDocumentSetRequestType> request)
 	{
-		return new JAXBElement<RegistryResponseType>(new QName("urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0","RegistryResponse"), RegistryResponseType.class, this.m_service.provideAndRegisterDocumentSetB(request.getValue()));
+		admit(AdmissionController.Transaction.PROVIDE_AND_REGISTER);
+		try {
+			return new JAXBElement<RegistryResponseType>(new QName("urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0","RegistryResponse"), RegistryResponseType.class, this.m_service.provideAndRegisterDocumentSetB(request.getValue()));
+		} finally {
+			this.m_admissionController.release(AdmissionController.Transaction.PROVIDE_AND_REGISTER);
+		}
 	}
 	
 	/**
@@ -59,7 +68,23 @@ public class XdsDocumentRepositoryEndpoint {
 	@ResponsePayload
 	public JAXBElement<RetrieveDocumentSetResponseType> retrieveDocumentSetB(@RequestPayload JAXBElement<RetrieveDocumentSetRequestType> request)
 	{
-		return new JAXBElement<RetrieveDocumentSetResponseType>(new QName("urn:ihe:iti:xds-b:2007","RetrieveDocumentSetResponse"), RetrieveDocumentSetResponseType.class, this.m_service.retrieveDocumentSetB(request.getValue()));
+		admit(AdmissionController.Transaction.RETRIEVE);
+		try {
+			return new JAXBElement<RetrieveDocumentSetResponseType>(new QName("urn:ihe:iti:xds-b:2007","RetrieveDocumentSetResponse"), RetrieveDocumentSetResponseType.class, this.m_service.retrieveDocumentSetB(request.getValue()));
+		} finally {
+			this.m_admissionController.release(AdmissionController.Transaction.RETRIEVE);
+		}
+	}
+
+	/**
+	 * Waits for the request to be admitted
+	 *
+	 * @throws RequestRejectedException if it isn't, to return a SOAP fault straight away
+	 */
+	private void admit(AdmissionController.Transaction transaction) {
+		if (!this.m_admissionController.acquire(transaction)) {
+			throw new RequestRejectedException("The repository is too busy to process the request, please try again later");
+		}
 	}
 	
 }
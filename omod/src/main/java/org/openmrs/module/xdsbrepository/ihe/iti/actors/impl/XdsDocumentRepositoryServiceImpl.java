@@ -4,8 +4,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dcm4chee.xds2.common.XDSConstants;
 import org.dcm4chee.xds2.common.XDSUtil;
-import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
-import org.dcm4chee.xds2.common.audit.XDSAudit;
 import org.dcm4chee.xds2.common.exception.XDSException;
 import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
 import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetRequestType;
@@ -16,7 +14,6 @@ import org.dcm4chee.xds2.infoset.rim.RegistryError;
 import org.dcm4chee.xds2.infoset.rim.RegistryErrorList;
 import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.shr.atna.api.AtnaAuditService;
 import org.openmrs.module.shr.contenthandler.api.Content;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
@@ -24,7 +21,14 @@ import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
 import org.openmrs.module.xdsbrepository.Utils;
 import org.openmrs.module.xdsbrepository.XDSbService;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.audit.AuditDispatcher;
+import org.openmrs.module.xdsbrepository.audit.RetrieveExportAuditEvent;
+import org.openmrs.module.xdsbrepository.config.ConfigurationManager;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
 import org.openmrs.module.xdsbrepository.ihe.iti.actors.XdsDocumentRepositoryService;
+import org.openmrs.module.xdsbrepository.queue.QueueBackpressure;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
 import javax.activation.DataHandler;
@@ -47,6 +51,18 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
     // Get the clinical statement service
     protected final Log log = LogFactory.getLog(this.getClass());
 
+    @Autowired
+    @Qualifier("xdsbrepository.configurationManager")
+    private ConfigurationManager configurationManager;
+
+    @Autowired
+    @Qualifier("xdsbrepository.auditDispatcher")
+    private AuditDispatcher auditDispatcher;
+
+    @Autowired
+    @Qualifier("xdsbrepository.queueBackpressure")
+    private QueueBackpressure queueBackpressure;
+
 
     /**
      * Document repository service implementation
@@ -63,6 +79,8 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
         RegistryResponseType response = new RegistryResponseType();
 
         try {
+            // hold back before the transaction starts so that a waiting submission doesn't keep a connection
+            getQueueBackpressure().admit();
             response = Context.getService(XDSbService.class).provideAndRegisterDocumentSetB(request);
 
         } catch (ContentHandlerException ex) {
@@ -104,11 +122,13 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
                 Utils.startSession();
             }
 
-            String repositoryUID = getRepositoryUniqueId();
+            XDSbRepositoryConfiguration configuration = getConfiguration();
+            String repositoryUID = configuration.getRepositoryUniqueId();
+            String homeCommunityId = configuration.getHomeCommunityId();
             String docUid, reqRepoUid;
             Content content;
             for (DocumentRequest drq : req.getDocumentRequest()) {
-                drq.setHomeCommunityId(Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.XDS_HOME_COMMUNITY_ID));
+                drq.setHomeCommunityId(homeCommunityId);
             }
             RetrieveDocumentSetResponseType.DocumentResponse docRsp;
             List<String> retrievedUIDs = new ArrayList<String>();
@@ -136,7 +156,7 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
 
                     if (content != null) {
                         try {
-                            docRsp = getDocumentResponse(content, docUid, getRepositoryUniqueId());
+                            docRsp = getDocumentResponse(content, docUid, repositoryUID);
                             rsp.getDocumentResponse().add(docRsp);
                             retrievedUIDs.add(docUid);
                         } catch (IOException e) {
@@ -179,8 +199,7 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
             processExceptionForResponse(regRsp, x);
             Context.clearSession(); //TODO this doesn't seem to rollback
         } finally {
-            XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
-            XDSAudit.logRepositoryRetrieveExport(req, rsp, new AuditRequestInfo(null, null));
+            getAuditDispatcher().dispatch(new RetrieveExportAuditEvent(req, rsp));
             Context.closeSession();
 
             rsp.setRegistryResponse(regRsp);
@@ -188,8 +207,25 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
         }
     }
 
-    private String getRepositoryUniqueId() {
-        return Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP);
+    private XDSbRepositoryConfiguration getConfiguration() {
+        if (configurationManager == null) {
+            configurationManager = Utils.getConfigurationManager();
+        }
+        return configurationManager.getConfiguration();
+    }
+
+    private AuditDispatcher getAuditDispatcher() {
+        if (auditDispatcher == null) {
+            auditDispatcher = Utils.getAuditDispatcher();
+        }
+        return auditDispatcher;
+    }
+
+    private QueueBackpressure getQueueBackpressure() {
+        if (queueBackpressure == null) {
+            queueBackpressure = Utils.getQueueBackpressure();
+        }
+        return queueBackpressure;
     }
 
     private RetrieveDocumentSetResponseType.DocumentResponse getDocumentResponse(Content content, String documentUniqueId, String repositoryUniqueId) throws IOException {
@@ -213,7 +249,12 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
 
 
     private void processExceptionForResponse(RegistryResponseType response, Throwable t) {
-        log.error("Exception while processing provide and register", t);
+        if (t instanceof XDSException && XDSbServiceConstants.ERROR_XDS_REPOSITORY_BUSY.equals(((XDSException) t).getErrorCode())) {
+            // expected while the queue is backed up, the source retries later
+            log.warn("Rejected provide and register: " + t.getMessage());
+        } else {
+            log.error("Exception while processing provide and register", t);
+        }
         response.setStatus(XDSConstants.XDS_B_STATUS_FAILURE);
 
         if (t instanceof XDSException) {
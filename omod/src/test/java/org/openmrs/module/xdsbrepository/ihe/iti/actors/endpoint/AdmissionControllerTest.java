@@ -0,0 +1,46 @@
+package org.openmrs.module.xdsbrepository.ihe.iti.actors.endpoint;
+
+import org.junit.Test;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.config.XDSbRepositoryConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest extends BaseModuleContextSensitiveTest {
+
+    /**
+     * Admits one submission and one retrieval at a time, without waiting
+     */
+    private static class TestAdmissionController extends AdmissionController {
+        final XDSbRepositoryConfiguration configuration = Utils.getConfigurationManager().reload()
+                .with(XDSbServiceConstants.ADMISSION_SUBMIT_MAX_CONCURRENT_GP, "1")
+                .with(XDSbServiceConstants.ADMISSION_SUBMIT_MAX_WAITING_GP, "0")
+                .with(XDSbServiceConstants.ADMISSION_RETRIEVE_MAX_CONCURRENT_GP, "1")
+                .with(XDSbServiceConstants.ADMISSION_RETRIEVE_MAX_WAITING_GP, "0");
+
+        @Override
+        protected XDSbRepositoryConfiguration getConfiguration() {
+            return configuration;
+        }
+    }
+
+    @Test
+    public void acquire_shouldRejectRequestsOverTheLimitOfTheirTransaction() {
+        AdmissionController controller = new TestAdmissionController();
+        assertTrue(controller.acquire(AdmissionController.Transaction.PROVIDE_AND_REGISTER));
+        assertFalse(controller.acquire(AdmissionController.Transaction.PROVIDE_AND_REGISTER));
+        assertEquals(1, controller.getRejectedCount(AdmissionController.Transaction.PROVIDE_AND_REGISTER));
+
+        // submissions don't hold up retrievals
+        assertTrue(controller.acquire(AdmissionController.Transaction.RETRIEVE));
+
+        controller.release(AdmissionController.Transaction.PROVIDE_AND_REGISTER);
+        assertTrue(controller.acquire(AdmissionController.Transaction.PROVIDE_AND_REGISTER));
+        assertEquals(1, controller.getActiveCount(AdmissionController.Transaction.PROVIDE_AND_REGISTER));
+        assertEquals(0, controller.getRejectedCount(AdmissionController.Transaction.RETRIEVE));
+    }
+}